@@ -0,0 +1,27 @@
+package de.mw.spring.benchmark;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreaming;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.scheduling.annotation.EnableAsync;
+
+/**
+ * Minimal application context for the JMH benchmarks, uses the in-memory H2 database of the test resources.
+ */
+@SpringBootApplication(scanBasePackageClasses = {BenchmarkApplication.class, AsyncJPAStreaming.class})
+@EnableAsync
+class BenchmarkApplication {
+
+    static ConfigurableApplicationContext start(String... properties) {
+        return new SpringApplicationBuilder(BenchmarkApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .properties(properties)
+                .run();
+    }
+
+}
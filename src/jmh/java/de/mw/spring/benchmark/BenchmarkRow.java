@@ -0,0 +1,27 @@
+package de.mw.spring.benchmark;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Row of the large table streamed by the benchmarks.
+ */
+@Entity
+@Getter
+@NoArgsConstructor
+public class BenchmarkRow {
+
+    @Id
+    private Long id;
+
+    private String name;
+
+    private String payload;
+
+    private LocalDateTime created;
+
+}
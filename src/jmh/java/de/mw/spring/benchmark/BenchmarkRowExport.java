@@ -0,0 +1,7 @@
+package de.mw.spring.benchmark;
+
+/**
+ * The few columns of a {@link BenchmarkRow} needed for an export.
+ */
+public record BenchmarkRowExport(Long id, String name) {
+}
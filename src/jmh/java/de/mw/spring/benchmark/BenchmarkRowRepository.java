@@ -0,0 +1,26 @@
+package de.mw.spring.benchmark;
+
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+
+import java.util.stream.Stream;
+
+interface BenchmarkRowRepository extends JpaRepository<BenchmarkRow, Long> {
+
+    @QueryHints(value = {
+            @QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = AvailableHints.HINT_CACHEABLE, value = "false")
+    })
+    Stream<BenchmarkRow> streamAllBy();
+
+    @QueryHints(value = {
+            @QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = AvailableHints.HINT_CACHEABLE, value = "false")
+    })
+    @Query("select new de.mw.spring.benchmark.BenchmarkRowExport(r.id, r.name) from BenchmarkRow r")
+    Stream<BenchmarkRowExport> streamAllExportsBy();
+
+}
@@ -0,0 +1,66 @@
+package de.mw.spring.benchmark;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingOptions;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingSupport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Rows per second handed over from the async thread to the consuming thread, per entity vs. chunked.
+ * The rows are pre-allocated so only the hand-off between both threads is measured, not the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkedHandOffBenchmark {
+
+    private static final int ROWS = 1_000_000;
+
+    @Param({"1", "100", "500"})
+    private int chunkSize;
+
+    @Param({"1000"})
+    private int bufferCapacity;
+
+    private ConfigurableApplicationContext context;
+
+    private AsyncJPAStreamingSupport streamingSupport;
+
+    private AsyncJPAStreamingOptions options;
+
+    private Object[] rows;
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApplication.start();
+        streamingSupport = context.getBean(AsyncJPAStreamingSupport.class);
+        options = AsyncJPAStreamingOptions.builder()
+                                          .bufferCapacity(bufferCapacity)
+                                          .chunkSize(chunkSize)
+                                          .build();
+        rows = new Object[ROWS];
+        Arrays.setAll(rows, i -> new Object());
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void handOff(Blackhole blackhole) {
+        try (Stream<Object> stream = streamingSupport.streamAsync(() -> Arrays.stream(rows), options)) {
+            stream.forEach(blackhole::consume);
+        }
+    }
+
+}
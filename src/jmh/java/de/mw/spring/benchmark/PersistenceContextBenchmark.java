@@ -0,0 +1,123 @@
+package de.mw.spring.benchmark;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingOptions;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingPersistenceContext;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingSupport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Heap usage and GC of the persistence context strategies when streaming a large table of managed entities.
+ * <p>
+ * Run with {@code -prof gc} for allocation and GC counts. The old generation peak shows how many entities
+ * (and their snapshots) are retained by the persistence context while streaming, its baseline includes
+ * the table of the in-memory H2 database.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistenceContextBenchmark {
+
+    private static final int ROWS = 200_000;
+
+    @Param({"KEEP", "CLEAR_1000", "CLEAR_100", "DETACH", "STATELESS"})
+    private String strategy;
+
+    private ConfigurableApplicationContext context;
+
+    private AsyncJPAStreamingSupport streamingSupport;
+
+    private BenchmarkRowRepository repository;
+
+    private AsyncJPAStreamingOptions options;
+
+    private List<MemoryPoolMXBean> oldGenPools;
+
+    /**
+     * Event counters are summed over the measurement iterations, so each invocation reports its share of the mean.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class HeapCounters {
+
+        public double peakOldGenMB;
+
+        private int iterations;
+
+        @Setup
+        public void setUp(BenchmarkParams params) {
+            iterations = params.getMeasurement().getCount();
+        }
+
+    }
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApplication.start();
+        streamingSupport = context.getBean(AsyncJPAStreamingSupport.class);
+        repository = context.getBean(BenchmarkRowRepository.class);
+        context.getBean(JdbcTemplate.class)
+               .update("insert into benchmark_row (id, name, payload, created) " +
+                       "select x, concat('name ', x), repeat('x', 100), current_timestamp from system_range(1, ?)", ROWS);
+
+        AsyncJPAStreamingOptions.AsyncJPAStreamingOptionsBuilder builder = AsyncJPAStreamingOptions.builder()
+                                                                                                   .bufferCapacity(1000);
+        options = switch (strategy) {
+            case "CLEAR_1000" -> builder.persistenceContext(AsyncJPAStreamingPersistenceContext.CLEAR).clearInterval(1000).build();
+            case "CLEAR_100" -> builder.persistenceContext(AsyncJPAStreamingPersistenceContext.CLEAR).clearInterval(100).build();
+            case "DETACH" -> builder.persistenceContext(AsyncJPAStreamingPersistenceContext.DETACH).build();
+            default -> builder.build();
+        };
+
+        oldGenPools = ManagementFactory.getMemoryPoolMXBeans()
+                                       .stream()
+                                       .filter(pool -> pool.getType() == MemoryType.HEAP)
+                                       .filter(pool -> pool.getName().contains("Old") || pool.getName().contains("Tenured"))
+                                       .toList();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetHeap() {
+        System.gc();
+        oldGenPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole, HeapCounters counters) {
+        try (Stream<BenchmarkRow> stream = openStream()) {
+            stream.forEach(blackhole::consume);
+        }
+        counters.peakOldGenMB = oldGenPools.stream()
+                                           .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                                           .sum() / (1024.0 * 1024.0) / counters.iterations;
+    }
+
+    private Stream<BenchmarkRow> openStream() {
+        if (strategy.equals("STATELESS")) {
+            return streamingSupport.streamAsyncStateless(session -> session.createSelectionQuery("from BenchmarkRow", BenchmarkRow.class)
+                                                                           .setFetchSize(1000)
+                                                                           .getResultStream(), options);
+        }
+        return streamingSupport.streamAsync(() -> repository.streamAllBy(), options);
+    }
+
+}
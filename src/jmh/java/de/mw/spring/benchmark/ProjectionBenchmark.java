@@ -0,0 +1,87 @@
+package de.mw.spring.benchmark;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingOptions;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingSupport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Export of two columns of a large table: streamed entities mapped to the export ({@code ENTITY}, with
+ * {@code clearEntityManager} {@code ENTITY_CLEAR}), a JPQL constructor projection ({@code PROJECTION}) and
+ * {@link AsyncJPAStreamingSupport#streamAsyncRows} with a row mapper ({@code ROWS}).
+ * <p>
+ * Run with {@code -prof gc} to compare the allocations of entity hydration and the persistence context,
+ * e.g. {@code -Dbenchmark.args="Projection -prof gc"}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ProjectionBenchmark {
+
+    @Param({"ENTITY", "ENTITY_CLEAR", "PROJECTION", "ROWS"})
+    private String mode;
+
+    @Param({"100000"})
+    private int rows;
+
+    private ConfigurableApplicationContext context;
+
+    private AsyncJPAStreamingSupport streamingSupport;
+
+    private BenchmarkRowRepository repository;
+
+    private AsyncJPAStreamingOptions options;
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApplication.start("spring.jdbc.template.fetch-size=1000");
+        streamingSupport = context.getBean(AsyncJPAStreamingSupport.class);
+        repository = context.getBean(BenchmarkRowRepository.class);
+        context.getBean(JdbcTemplate.class)
+               .update("insert into benchmark_row (id, name, payload, created) " +
+                       "select x, concat('name ', x), repeat('x', 100), current_timestamp from system_range(1, ?)", rows);
+
+        options = AsyncJPAStreamingOptions.builder()
+                                          .bufferCapacity(1000)
+                                          .chunkSize(100)
+                                          .clearEntityManager(mode.equals("ENTITY_CLEAR"))
+                                          .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long export(Blackhole blackhole) {
+        long count = 0;
+        try (Stream<BenchmarkRowExport> stream = openStream()) {
+            for (var iterator = stream.iterator(); iterator.hasNext(); count++) {
+                blackhole.consume(iterator.next());
+            }
+        }
+        return count;
+    }
+
+    private Stream<BenchmarkRowExport> openStream() {
+        return switch (mode) {
+            case "PROJECTION" -> streamingSupport.streamAsync(() -> repository.streamAllExportsBy(), options);
+            case "ROWS" -> streamingSupport.streamAsyncRows("select id, name from benchmark_row",
+                                                            (resultSet, row) -> new BenchmarkRowExport(resultSet.getLong(1), resultSet.getString(2)),
+                                                            options);
+            default -> streamingSupport.streamAsync(() -> repository.streamAllBy()
+                                                                   .map(row -> new BenchmarkRowExport(row.getId(), row.getName())), options);
+        };
+    }
+
+}
@@ -0,0 +1,103 @@
+package de.mw.spring.benchmark;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingOptions;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingSupport;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Load test with several thousand slow clients streaming at the same time, platform thread pool vs. virtual threads.
+ * <p>
+ * Both modes are limited to the same number of concurrent streams, so the time to serve all clients is similar.
+ * The difference shows in the peak number of platform threads, reported as secondary result.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SlowClientLoadBenchmark {
+
+    private static final int ROWS = 20;
+
+    private static final long CLIENT_DELAY_PER_ROW = TimeUnit.MICROSECONDS.toNanos(200);
+
+    @Param({"false", "true"})
+    private boolean virtualThreads;
+
+    @Param({"2000"})
+    private int clients;
+
+    private ConfigurableApplicationContext context;
+
+    private AsyncJPAStreamingSupport streamingSupport;
+
+    private AsyncJPAStreamingOptions options;
+
+    private Object[] rows;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApplication.start("app.configuration.asyncjpastreaming.virtualThreads=" + virtualThreads);
+        streamingSupport = context.getBean(AsyncJPAStreamingSupport.class);
+        options = AsyncJPAStreamingOptions.builder()
+                                          .bufferCapacity(2)
+                                          .build();
+        rows = new Object[ROWS];
+        Arrays.setAll(rows, i -> new Object());
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PeakThreads {
+
+        public long peakPlatformThreads;
+
+    }
+
+    @Benchmark
+    public long serveSlowClients(PeakThreads peakThreads) throws Exception {
+        threads.resetPeakThreadCount();
+        long consumed = 0;
+        try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Long>> results = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                results.add(clientThreads.submit(this::slowClient));
+            }
+            for (Future<Long> result : results) {
+                consumed += result.get();
+            }
+        }
+        peakThreads.peakPlatformThreads = threads.getPeakThreadCount();
+        return consumed;
+    }
+
+    private long slowClient() {
+        try (Stream<Object> stream = streamingSupport.streamAsync(() -> Arrays.stream(rows), options)) {
+            return stream.peek(row -> LockSupport.parkNanos(CLIENT_DELAY_PER_ROW))
+                         .count();
+        }
+    }
+
+}
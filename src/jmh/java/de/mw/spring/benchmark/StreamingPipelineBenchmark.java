@@ -0,0 +1,155 @@
+package de.mw.spring.benchmark;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingOptions;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingSupport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end benchmark of the streaming pipeline: H2 query, Hibernate, async thread, buffer and consumer.
+ * <p>
+ * Compares {@link AsyncJPAStreamingSupport#streamAsync} ({@code ASYNC}) with the list-emulated path used when
+ * streaming is disabled ({@code DISABLED}) and a plain {@code getResultList} in a read-only transaction
+ * ({@code RESULT_LIST}, ignores the buffer options). The consumer burns {@code consumerTokens} of
+ * {@link Blackhole#consumeCPU(long)} per row to simulate slow clients.
+ * </p>
+ * <p>
+ * The score is the time to stream all rows, secondary results are the rows per second, the time to the first row
+ * and the peak heap usage (sum of the peaks of all heap pools, an upper bound). Run with {@code -prof gc}
+ * for the allocation rate, e.g. {@code -Dbenchmark.args="StreamingPipeline -p rows=100000 -prof gc"}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StreamingPipelineBenchmark {
+
+    @Param({"ASYNC", "DISABLED", "RESULT_LIST"})
+    private String mode;
+
+    @Param({"10000", "100000"})
+    private int rows;
+
+    @Param({"100", "1000"})
+    private int bufferCapacity;
+
+    @Param({"false", "true"})
+    private boolean clearEntityManager;
+
+    @Param({"0", "100"})
+    private long consumerTokens;
+
+    private ConfigurableApplicationContext context;
+
+    private AsyncJPAStreamingSupport streamingSupport;
+
+    private BenchmarkRowRepository repository;
+
+    private TransactionTemplate readonlyTransaction;
+
+    private AsyncJPAStreamingOptions options;
+
+    private List<MemoryPoolMXBean> heapPools;
+
+    /**
+     * Event counters are summed over the measurement iterations, so each invocation reports its share of the mean.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class PipelineCounters {
+
+        public double rowsPerSecond;
+
+        public double firstRowMs;
+
+        public double peakHeapMB;
+
+        private int iterations;
+
+        @Setup
+        public void setUp(BenchmarkParams params) {
+            iterations = params.getMeasurement().getCount();
+        }
+
+    }
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApplication.start("app.configuration.asyncjpastreaming.enabled=" + !mode.equals("DISABLED"));
+        streamingSupport = context.getBean(AsyncJPAStreamingSupport.class);
+        repository = context.getBean(BenchmarkRowRepository.class);
+        readonlyTransaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        readonlyTransaction.setReadOnly(true);
+        context.getBean(JdbcTemplate.class)
+               .update("insert into benchmark_row (id, name, payload, created) " +
+                       "select x, concat('name ', x), repeat('x', 100), current_timestamp from system_range(1, ?)", rows);
+
+        options = AsyncJPAStreamingOptions.builder()
+                                          .bufferCapacity(bufferCapacity)
+                                          .clearEntityManager(clearEntityManager)
+                                          .build();
+        heapPools = ManagementFactory.getMemoryPoolMXBeans()
+                                     .stream()
+                                     .filter(pool -> pool.getType() == MemoryType.HEAP)
+                                     .toList();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetHeap() {
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    @Benchmark
+    public long stream(Blackhole blackhole, PipelineCounters counters) {
+        long start = System.nanoTime();
+        long firstRow = 0;
+        long count = 0;
+        try (Stream<BenchmarkRow> stream = openStream()) {
+            for (var iterator = stream.iterator(); iterator.hasNext(); count++) {
+                BenchmarkRow row = iterator.next();
+                if (count == 0) {
+                    firstRow = System.nanoTime();
+                }
+                blackhole.consume(row);
+                Blackhole.consumeCPU(consumerTokens);
+            }
+        }
+        long end = System.nanoTime();
+
+        counters.rowsPerSecond = count * 1e9 / (end - start) / counters.iterations;
+        counters.firstRowMs = (firstRow - start) / 1e6 / counters.iterations;
+        counters.peakHeapMB = heapPools.stream()
+                                       .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                                       .sum() / (1024.0 * 1024.0) / counters.iterations;
+        return count;
+    }
+
+    private Stream<BenchmarkRow> openStream() {
+        if (mode.equals("RESULT_LIST")) {
+            return readonlyTransaction.execute(status -> repository.findAll()).stream();
+        }
+        return streamingSupport.streamAsync(() -> repository.streamAllBy(), options);
+    }
+
+}
@@ -9,6 +9,7 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.concurrent.Flow;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
@@ -16,7 +17,13 @@ import java.util.stream.Stream;
  * Executes the repository method in an {@link Async} readonly {@link Transactional} thread and returns a lazy stream of entities.
  * This annotation can only be used on methods returning a {@link Stream}, e.g. use {@link Query#getResultStream()}.
  * <p>
- * The stream of entities will be outside of the transaction. Make sure all data for further processing is loaded.
+ * Methods may also return a {@link Flow.Publisher} or a reactor {@code Flux}, e.g. {@code Flux.fromStream(query.getResultStream())}.
+ * The entities are then published demand driven, the subscriber's requests determine how far the async thread
+ * reads ahead instead of the {@link #bufferCapacity()}. Cancelling the subscription ends the transaction.
+ * </p>
+ * <p>
+ * The stream of entities will be outside of the transaction. Make sure all data for further processing is loaded,
+ * e.g. lazy associations with {@link #prefetch()}.
  * Wrapping the call inside a {@link Transactional} method will not help, as the processing is async.
  * <p>
  * <p>
@@ -41,6 +48,11 @@ import java.util.stream.Stream;
  *      @QueryHint(name = org.hibernate.jpa.AvailableHints.HINT_READONLY, value = "true")
  * })
  * </pre>
+ * or let it be chosen per method with {@code app.configuration.asyncjpastreaming.fetchSize.adaptive=true},
+ * which installs its own {@code hibernate.connection.provider_class}, see {@link AsyncJPAStreamingFetchSize}.
+ * <p>
+ * On shutdown running streams get a drain window before their queries are cancelled, see {@link AsyncJPAStreamingShutdown}.
+ * </p>
  */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
@@ -54,7 +66,180 @@ public @interface AsyncJPAStreaming {
     /**
      * Clear the entity manager after 1000 items while streaming, default false.
      * It is highly recommended to use it when streaming a large set of managed entities.
+     * Shortcut for {@code persistenceContext = CLEAR}.
      */
     boolean clearEntityManager() default false;
 
-}
\ No newline at end of file
+    /**
+     * How the persistence context is kept small while streaming, default {@link AsyncJPAStreamingPersistenceContext#KEEP}
+     * (or {@link AsyncJPAStreamingPersistenceContext#CLEAR} with {@link #clearEntityManager()}).
+     * <p>
+     * {@link AsyncJPAStreamingPersistenceContext#DETACH} removes each entity from the persistence context right after
+     * it was handed over, which keeps it smallest when the method returns the entities themselves.
+     * </p>
+     */
+    AsyncJPAStreamingPersistenceContext persistenceContext() default AsyncJPAStreamingPersistenceContext.KEEP;
+
+    /**
+     * Number of entities after which the persistence context is cleared, default 1000.
+     */
+    int clearInterval() default 1000;
+
+    /**
+     * Hand over the entities in chunks of the given size from the async thread to the consuming thread, default 1.
+     * A chunk is handed over when it is full or the result set is exhausted.
+     * <p>
+     * Larger chunks reduce the synchronization between both threads per entity, which helps when streaming
+     * millions of rows. The first entities will only arrive after the first chunk is filled though.
+     * The {@link #bufferCapacity()} is still counted in entities, a full buffer hands over the current chunk early.
+     */
+    int chunkSize() default 1;
+
+    /**
+     * Adapt the buffer capacity to the throughput of the async thread and the consuming thread, default false.
+     * <p>
+     * The capacity starts with {@code app.configuration.asyncjpastreaming.adaptiveBuffer.minCapacity} and grows
+     * while the throughput of both threads fluctuates, up to the {@link #bufferCapacity()} limited by
+     * {@code app.configuration.asyncjpastreaming.adaptiveBuffer.maxCapacity}. When one thread is constantly slower
+     * the capacity shrinks again, as a larger buffer would only hold more entities in memory.
+     * </p>
+     * Every buffer reserves its capacity from the global {@code app.configuration.asyncjpastreaming.globalBufferCapacity}.
+     */
+    boolean adaptiveBuffer() default false;
+
+    /**
+     * Stream the entities with several connections concurrently, default 1.
+     * <p>
+     * The annotated method must take an {@link AsyncJPAStreamingKeyRange} parameter and return a {@link Stream} of the
+     * entities with keys in that range. The range passed by the caller is split into the given number of partitions,
+     * limited by the number of threads of the {@code asyncJPAStreamingTaskExecutor}. Every partition is streamed
+     * in its own async thread and transaction, so the partitions do not share a consistent snapshot of the data.
+     * The partitions' streams are merged into the returned stream as configured by {@link #orderedMerge()}.
+     * </p>
+     */
+    int partitions() default 1;
+
+    /**
+     * Merge the {@link #partitions()} in order of their key ranges, default false.
+     * <p>
+     * An ordered merge returns all entities of the first partition, then of the second and so on, while all
+     * partitions are fetched concurrently into their buffers. An unordered merge returns the entities
+     * as soon as any partition fetched them.
+     * </p>
+     */
+    boolean orderedMerge() default false;
+
+    /**
+     * How the stream is executed when the method is called by the async thread of another stream,
+     * default {@link AsyncJPAStreamingNested#JOIN}.
+     * <p>
+     * Joining executes the method directly within the transaction of the outer stream. A nested stream with
+     * {@link AsyncJPAStreamingNested#NEW} gets its own async thread and connection, e.g. to use other options
+     * or a separate transaction.
+     * </p>
+     */
+    AsyncJPAStreamingNested nested() default AsyncJPAStreamingNested.JOIN;
+
+    /**
+     * Spill the entities to a memory-mapped temp file of the given size when the buffer is full, default 0 (no spilling).
+     * <p>
+     * Without spilling a slow consumer blocks the async thread, which keeps its transaction and connection
+     * until the consumer catches up. With spilling the entities exceeding the {@link #bufferCapacity()} are serialized
+     * to the spill file, so the query can finish and return the connection to the pool. The async thread only waits
+     * when the spill file is full. The file is created in {@code app.configuration.asyncjpastreaming.spill.directory},
+     * default the temp directory.
+     * </p>
+     * <p>
+     * Spilled entities are read back as detached copies by an {@link AsyncJPAStreamingSerializer}, default Java
+     * serialization. Spilling is not used for {@link #shared()} or {@link #partitions() partitioned} streams.
+     * </p>
+     */
+    int spillBytes() default 0;
+
+    /**
+     * Share one async thread and database cursor among concurrent calls with equal arguments, default false.
+     * <p>
+     * A call with the same arguments as a running stream joins it instead of starting a new query: it gets its own
+     * buffer, first receives the entities fetched so far and then the following ones. This avoids duplicate database
+     * load for bursts of identical requests, e.g. the same export downloaded by many users. The arguments need
+     * proper {@code equals} and {@code hashCode} implementations, the streamed entities are the same instances for
+     * all callers and must not be modified.
+     * </p>
+     * <p>
+     * The async thread waits for the slowest caller and ends when all callers closed their streams, so joined streams
+     * have to be consumed concurrently and not one after the other in the same thread.
+     * The stream can only be joined until more than {@link #replayCapacity()} entities were fetched,
+     * later calls start a new shared stream.
+     * </p>
+     */
+    boolean shared() default false;
+
+    /**
+     * Number of entities of a {@link #shared()} stream kept for callers joining late, default 1000.
+     * <p>
+     * The replay is kept in memory rather than spilled, it only references the entities handed to the other callers.
+     * A late caller reads the replay before its buffer, so the replay does not count against its buffer capacity.
+     * </p>
+     */
+    int replayCapacity() default 1000;
+
+    /**
+     * Maximum duration of the stream in milliseconds from the call, default 0 (no timeout).
+     * <p>
+     * When the stream takes longer its running query is cancelled with {@link java.sql.Statement#cancel()}, so the
+     * connection is returned to the pool right away, and the consumer receives an {@link AsyncJPAStreamingTimeoutException}
+     * instead of the entities it did not consume yet. An async thread waiting for a slow consumer is stopped as well.
+     * Closing the stream early cancels the running query as well, e.g. when a client disconnects.
+     * </p>
+     * A timeout of a {@link #shared()} stream fails it for all callers.
+     */
+    long timeoutMillis() default 0;
+
+    /**
+     * Maximum time in milliseconds without a fetched entity, default 0 (no idle timeout).
+     * <p>
+     * Fails the stream like {@link #timeoutMillis()} when the query does not return the next entity in time, e.g. a
+     * slow query or a lock wait. The time the async thread waits for the consumer does not count.
+     * </p>
+     */
+    long idleTimeoutMillis() default 0;
+
+    /**
+     * Group of the stream for the fairness weights of the admission control, default the annotated method,
+     * e.g. {@code PersonRepository.streamAll}.
+     * <p>
+     * With {@code app.configuration.asyncjpastreaming.admission.enabled=true} streams wait in the calling thread
+     * while all connections available to streams are in use, and are rejected with an
+     * {@link AsyncJPAStreamingRejectedException} after {@code app.configuration.asyncjpastreaming.admission.maxWaitMillis}.
+     * Freed connections are shared among the waiting groups by their weights
+     * {@code app.configuration.asyncjpastreaming.admission.weights[group]}. Streams of different tenants can be put
+     * in separate groups with {@link AsyncJPAStreamingOptions#getAdmissionGroup()}.
+     * </p>
+     */
+    String admissionGroup() default "";
+
+    /**
+     * Associations of the streamed entities which are initialized before the entities are handed over, default none.
+     * <p>
+     * The entities are read ahead in batches of {@link #prefetchBatchSize()}. For every named association the
+     * association of a batch is initialized with a single query
+     * {@code select e from Entity e left join fetch e.association where e in :entities}, instead of one query per
+     * entity while the stream is mapped in the transaction or a {@link org.hibernate.LazyInitializationException}
+     * outside of it. Associations loaded before, e.g. by a join fetch of the query, are skipped. With a second-level
+     * cache the entities loaded by the prefetch queries are cached like by any other query.
+     * </p>
+     * <p>
+     * Prefetching applies to methods returning managed entities, not to stateless or keyset streams, and needs a
+     * driver which executes queries while the cursor of the stream is open. Prefetched entities stay in the
+     * persistence context until it is cleared, {@link AsyncJPAStreamingPersistenceContext#DETACH} only detaches
+     * them along with cascading associations.
+     * </p>
+     */
+    String[] prefetch() default {};
+
+    /**
+     * Number of entities whose {@link #prefetch()} associations are initialized together, default 100.
+     */
+    int prefetchBatchSize() default 100;
+
+}
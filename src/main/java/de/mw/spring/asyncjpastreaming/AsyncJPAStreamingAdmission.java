@@ -0,0 +1,265 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.metadata.DataSourcePoolMetadataProvider;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control of streams, keeps connections of the pool free for ordinary transactions.
+ * <p>
+ * Configured with
+ * <ul>
+ *     <li>{@code app.configuration.asyncjpastreaming.admission.enabled}: default false, streams are only limited
+ *     by the threads of the asyncJPAStreamingTaskExecutor</li>
+ *     <li>{@code app.configuration.asyncjpastreaming.admission.reservedConnections}: connections of the pool
+ *     not used by streams, default 1</li>
+ *     <li>{@code app.configuration.asyncjpastreaming.admission.maxWaitMillis}: maximum time a stream waits
+ *     for admission in the calling thread, default 30000, 0 rejects right away</li>
+ *     <li>{@code app.configuration.asyncjpastreaming.admission.weights[group]}: weight of an
+ *     {@link AsyncJPAStreamingOptions#getAdmissionGroup() admission group}, default 1</li>
+ * </ul>
+ * A stream exceeding the maximum wait fails with an {@link AsyncJPAStreamingRejectedException}, so an overload is
+ * rejected fast instead of slowing down all users of the pool. A connection freed by a stream is given to the waiting
+ * group with the fewest running streams relative to its weight, e.g. a group with weight 2 gets twice the streams
+ * of a group with weight 1 while both are waiting. Streams of the same group are admitted in order of arrival.
+ * </p>
+ * Nested streams are admitted with their outer stream, otherwise outer streams could wait for each other's nested ones.
+ * For the same reason the partitions of a stream are admitted all at once.
+ */
+@Slf4j
+@Component
+class AsyncJPAStreamingAdmission {
+
+    /**
+     * Permit of an admitted stream, released when its async thread ended.
+     */
+    interface Permit {
+
+        Permit NONE = () -> {};
+
+        /**
+         * Frees the connection for the next stream, has no effect when called again.
+         */
+        void release();
+
+    }
+
+    private final boolean enabled;
+
+    private final int permits;
+
+    private final long maxWaitNanos;
+
+    private final Map<String, Integer> weights;
+
+    // guarded by this
+    private int running;
+    private long arrivals;
+    private final Map<String, Integer> runningPerGroup = new HashMap<>();
+    private final Map<String, Queue<Waiter>> waiting = new LinkedHashMap<>();
+
+
+    @Autowired
+    AsyncJPAStreamingAdmission(@Qualifier("hikariPoolDataSourceMetadataProvider") DataSourcePoolMetadataProvider meta,
+                               DataSource dataSource,
+                               Environment environment,
+                               @Value("${app.configuration.asyncjpastreaming.admission.enabled:false}") boolean enabled,
+                               @Value("${app.configuration.asyncjpastreaming.admission.reservedConnections:1}") int reservedConnections,
+                               @Value("${app.configuration.asyncjpastreaming.admission.maxWaitMillis:30000}") long maxWaitMillis) {
+        this(enabled ? meta.getDataSourcePoolMetadata(dataSource).getMax() - reservedConnections : Integer.MAX_VALUE,
+             enabled, maxWaitMillis,
+             Binder.get(environment)
+                   .bind("app.configuration.asyncjpastreaming.admission.weights", Bindable.mapOf(String.class, Integer.class))
+                   .orElse(Map.of()));
+    }
+
+    AsyncJPAStreamingAdmission(int permits, boolean enabled, long maxWaitMillis, Map<String, Integer> weights) {
+        this.enabled = enabled;
+        this.permits = Math.max(permits, 1);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(maxWaitMillis, 0));
+        this.weights = Map.copyOf(weights);
+    }
+
+    /**
+     * Waits in the calling thread until the stream of the given group is admitted.
+     *
+     * @throws AsyncJPAStreamingRejectedException when the stream was not admitted within the maximum wait
+     */
+    Permit admit(String group) {
+        return admit(group, 1).getFirst();
+    }
+
+    /**
+     * Waits in the calling thread until the given number of streams of the group are admitted at once, e.g. the
+     * partitions of one stream. Streams admitted one by one could wait for each other's remaining ones.
+     *
+     * @param count number of streams, at most {@link #getPermits()}
+     * @return one permit per stream
+     * @throws AsyncJPAStreamingRejectedException when the streams were not admitted within the maximum wait
+     */
+    List<Permit> admit(String group, int count) {
+        if (!enabled) {
+            return Collections.nCopies(count, Permit.NONE);
+        }
+        if (count < 1 || count > permits) {
+            throw new IllegalArgumentException("Cannot admit " + count + " streams with " + permits + " permits");
+        }
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(group, arrivals++, count);
+            waiting.computeIfAbsent(group, key -> new ArrayDeque<>()).add(waiter);
+            dispatch();
+
+            long deadline = System.nanoTime() + maxWaitNanos;
+            boolean interrupted = false;
+            while (!waiter.admitted) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    withdraw(waiter);
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    log.debug("Rejecting stream of {}, {} streams running", group, running);
+                    throw new AsyncJPAStreamingRejectedException((count > 1 ? count + " streams of " + group + " were" : "Stream of " + group + " was")
+                                                                 + " not admitted within " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+                                                                 + " ms, " + running + " of " + permits + " streams are running");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true; // keeps waiting, the caller expects a stream or a rejection
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<Permit> admitted = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            admitted.add(new Share(group));
+        }
+        return admitted;
+    }
+
+    /**
+     * Admits waiting streams while connections are free, the group with the lowest weighted number of running
+     * streams first. Streams waiting for more connections than are free keep later ones waiting, so they are not
+     * starved by single streams.
+     */
+    private void dispatch() {
+        boolean admitted = false;
+        while (!waiting.isEmpty()) {
+            Waiter next = null;
+            double nextShare = 0;
+            for (Queue<Waiter> queue : waiting.values()) {
+                Waiter first = queue.element();
+                double share = (runningPerGroup.getOrDefault(first.group, 0) + first.count) / (double) weight(first.group);
+                if (next == null || share < nextShare || (share == nextShare && first.arrival < next.arrival)) {
+                    next = first;
+                    nextShare = share;
+                }
+            }
+            if (running + next.count > permits) {
+                break;
+            }
+            withdraw(next);
+            next.admitted = true;
+            running += next.count;
+            runningPerGroup.merge(next.group, next.count, Integer::sum);
+            admitted = true;
+        }
+        if (admitted) {
+            notifyAll();
+        }
+    }
+
+    private void withdraw(Waiter waiter) {
+        Queue<Waiter> queue = waiting.get(waiter.group);
+        queue.remove(waiter);
+        if (queue.isEmpty()) {
+            waiting.remove(waiter.group);
+        }
+    }
+
+    private void release(String group) {
+        running--;
+        runningPerGroup.computeIfPresent(group, (key, count) -> count > 1 ? count - 1 : null);
+        dispatch();
+    }
+
+    private int weight(String group) {
+        return Math.max(weights.getOrDefault(group, 1), 1);
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Max number of streams running at once, the number of streams admitted at once is limited to it.
+     */
+    int getPermits() {
+        return enabled ? permits : Integer.MAX_VALUE;
+    }
+
+    private static final class Waiter {
+
+        private final String group;
+
+        private final long arrival;
+
+        private final int count;
+
+        // guarded by the admission
+        private boolean admitted;
+
+        Waiter(String group, long arrival, int count) {
+            this.group = group;
+            this.arrival = arrival;
+            this.count = count;
+        }
+
+    }
+
+    private final class Share implements Permit {
+
+        private final String group;
+
+        // guarded by the admission
+        private boolean released;
+
+        Share(String group) {
+            this.group = group;
+        }
+
+        @Override
+        public void release() {
+            synchronized (AsyncJPAStreamingAdmission.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                AsyncJPAStreamingAdmission.this.release(group);
+            }
+        }
+
+    }
+
+}
@@ -4,9 +4,16 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
+import org.reactivestreams.Publisher;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
+import reactor.adapter.JdkFlowAdapter;
+import reactor.core.publisher.Flux;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
 import java.util.stream.Stream;
 
 import lombok.RequiredArgsConstructor;
@@ -20,28 +27,123 @@ import lombok.SneakyThrows;
 @RequiredArgsConstructor
 class AsyncJPAStreamingAspect {
 
+    private static final boolean REACTOR_PRESENT = ClassUtils.isPresent("reactor.core.publisher.Flux", AsyncJPAStreamingAspect.class.getClassLoader());
+
     private final AsyncJPAStreamingSupport streamingSupport;
 
 
     /**
      * Wrapper method for executing the repository method.
-     * Checks the return type and suppresses the checked exception for Supplier usage. 
+     * Suppresses the checked exception for Supplier usage. 
      */
     @SuppressWarnings("unchecked")
     @SneakyThrows
     protected <T> Stream<T> getStream(ProceedingJoinPoint joinPoint) {
-        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
-        if (!signature.getReturnType().isAssignableFrom(Stream.class)) {
-            throw new ClassCastException("AsyncJPAStreaming aspect can only applied to repository methods with return type of java.util.Stream");
-        }
         return (Stream<T>) joinPoint.proceed();
     }
 
+    /**
+     * Wrapper method for executing the repository method with the given key range instead of the original one.
+     */
+    @SuppressWarnings("unchecked")
+    @SneakyThrows
+    protected <T> Stream<T> getStream(ProceedingJoinPoint joinPoint, int rangeIndex, AsyncJPAStreamingKeyRange range) {
+        Object[] args = joinPoint.getArgs().clone();
+        args[rangeIndex] = range;
+        return (Stream<T>) joinPoint.proceed(args);
+    }
+
+    /**
+     * Wrapper method for executing a repository method returning a {@link Flow.Publisher} or reactor {@code Flux}.
+     * The publisher is adapted to a stream requesting one entity after the other.
+     */
+    @SuppressWarnings("unchecked")
+    @SneakyThrows
+    protected <T> Stream<T> getPublisherStream(ProceedingJoinPoint joinPoint) {
+        Object publisher = joinPoint.proceed();
+        if (publisher instanceof Flow.Publisher<?> flowPublisher) {
+            return AsyncJPAStreamingPublisher.toStream((Flow.Publisher<T>) flowPublisher);
+        }
+        return AsyncJPAStreamingPublisher.toStream(ReactorAdapter.toFlowPublisher(publisher));
+    }
+
     @Around("@annotation(annotation)")
-    public <T> Stream<T> asyncJPAStreaming(ProceedingJoinPoint joinPoint, AsyncJPAStreaming annotation) throws Throwable {
+    public Object asyncJPAStreaming(ProceedingJoinPoint joinPoint, AsyncJPAStreaming annotation) throws Throwable {
         boolean readonly = TransactionSynchronizationManager.isCurrentTransactionReadOnly() ||
                            !TransactionSynchronizationManager.isActualTransactionActive(); // default is readonly
-        return streamingSupport.streamAsync(() -> getStream(joinPoint), readonly, annotation.clearEntityManager(), annotation.bufferCapacity());
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        AsyncJPAStreamingOptions options = AsyncJPAStreamingOptions.builder()
+                                                                   .name(signature.getDeclaringType().getSimpleName() + "." + signature.getName())
+                                                                   .readonly(readonly)
+                                                                   .clearEntityManager(annotation.clearEntityManager())
+                                                                   .persistenceContext(annotation.persistenceContext())
+                                                                   .clearInterval(annotation.clearInterval())
+                                                                   .bufferCapacity(annotation.bufferCapacity())
+                                                                   .chunkSize(annotation.chunkSize())
+                                                                   .adaptiveBuffer(annotation.adaptiveBuffer())
+                                                                   .partitions(annotation.partitions())
+                                                                   .orderedMerge(annotation.orderedMerge())
+                                                                   .nested(annotation.nested())
+                                                                   .spillBytes(annotation.spillBytes())
+                                                                   .sharingKey(annotation.shared() ? sharingKey(signature, joinPoint.getArgs()) : null)
+                                                                   .replayCapacity(annotation.replayCapacity())
+                                                                   .timeoutMillis(annotation.timeoutMillis())
+                                                                   .idleTimeoutMillis(annotation.idleTimeoutMillis())
+                                                                   .admissionGroup(annotation.admissionGroup().isEmpty() ? null : annotation.admissionGroup())
+                                                                   .prefetch(List.of(annotation.prefetch()))
+                                                                   .prefetchBatchSize(annotation.prefetchBatchSize())
+                                                                   .build();
+
+        Class<?> returnType = signature.getReturnType();
+        if (annotation.partitions() > 1) {
+            return streamPartitioned(joinPoint, returnType, options);
+        } else if (returnType.isAssignableFrom(Stream.class)) {
+            return streamingSupport.streamAsync(() -> getStream(joinPoint), options);
+        } else if (returnType.isAssignableFrom(Flow.Publisher.class)) {
+            return streamingSupport.publishAsync(() -> getPublisherStream(joinPoint), options);
+        } else if (REACTOR_PRESENT && ReactorAdapter.isFlux(returnType)) {
+            return ReactorAdapter.toFlux(streamingSupport.publishAsync(() -> getPublisherStream(joinPoint), options));
+        }
+        throw new ClassCastException("AsyncJPAStreaming aspect can only applied to repository methods with return type of " +
+                                     "java.util.Stream, java.util.concurrent.Flow.Publisher or reactor.core.publisher.Flux");
+    }
+
+    private Stream<?> streamPartitioned(ProceedingJoinPoint joinPoint, Class<?> returnType, AsyncJPAStreamingOptions options) {
+        if (!returnType.isAssignableFrom(Stream.class)) {
+            throw new IllegalStateException("AsyncJPAStreaming partitions can only be used with methods returning java.util.Stream");
+        }
+        Object[] args = joinPoint.getArgs();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof AsyncJPAStreamingKeyRange range) {
+                int rangeIndex = i;
+                return streamingSupport.streamAsyncPartitioned(range, partition -> getStream(joinPoint, rangeIndex, partition), options);
+            }
+        }
+        throw new IllegalStateException("AsyncJPAStreaming partitions require an AsyncJPAStreamingKeyRange parameter");
+    }
+
+    private static Object sharingKey(MethodSignature signature, Object[] args) {
+        return List.of(signature.getMethod(), Arrays.asList(args));
+    }
+
+    /**
+     * Keeps the optional reactor classes out of the aspect
+     */
+    private static final class ReactorAdapter {
+
+        static boolean isFlux(Class<?> returnType) {
+            return returnType.isAssignableFrom(Flux.class);
+        }
+
+        static <T> Flux<T> toFlux(Flow.Publisher<T> publisher) {
+            return JdkFlowAdapter.flowPublisherToFlux(publisher);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Flow.Publisher<T> toFlowPublisher(Object publisher) {
+            return JdkFlowAdapter.publisherToFlowPublisher((Publisher<T>) publisher);
+        }
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Sink of a {@link AsyncJPAStreaming#shared() shared} stream, hands over the entities of one async thread to the
+ * buffers of all subscribers.
+ * <p>
+ * Subscribers may join while the stream is running: they first receive the entities already fetched from the
+ * replay list and then the following ones. Once more than the replay capacity was fetched, the stream cannot be
+ * joined anymore. The async thread waits for the slowest subscriber and is cancelled when all subscribers
+ * closed their streams.
+ * </p>
+ */
+final class AsyncJPAStreamingBroadcast<T> implements AsyncJPAStreamingSink<T> {
+
+    private final Object lock = new Object();
+
+    private final int replayCapacity;
+
+    private final Consumer<AsyncJPAStreamingBroadcast<T>> onUnjoinable;
+
+    private final AsyncJPAStreamingQueryCancellation queryCancellation;
+
+    private List<T> replay = new ArrayList<>();
+
+    private volatile List<AsyncJPAStreamingBuffer<T>> subscribers = List.of();
+
+    private boolean joinable = true;
+
+
+    /**
+     * Creates a broadcast cancelling the registered query only once, without retries.
+     *
+     * @param replayCapacity number of entities kept for subscribers joining late
+     * @param onUnjoinable called once when the stream cannot be joined anymore
+     */
+    AsyncJPAStreamingBroadcast(int replayCapacity, Consumer<AsyncJPAStreamingBroadcast<T>> onUnjoinable) {
+        this(replayCapacity, onUnjoinable, new AsyncJPAStreamingQueryCancellation(null));
+    }
+
+    /**
+     * @param replayCapacity number of entities kept for subscribers joining late
+     * @param onUnjoinable called once when the stream cannot be joined anymore
+     * @param queryCancellation cancellation of the stream's query when it is aborted
+     */
+    AsyncJPAStreamingBroadcast(int replayCapacity, Consumer<AsyncJPAStreamingBroadcast<T>> onUnjoinable,
+                               AsyncJPAStreamingQueryCancellation queryCancellation) {
+        this.replayCapacity = replayCapacity;
+        this.onUnjoinable = onUnjoinable;
+        this.queryCancellation = queryCancellation;
+    }
+
+    /**
+     * Subscribes a new buffer if the stream can still be joined.
+     * <p>
+     * The replayed entities are not offered to the buffer, which may be smaller than the replay, but read from a copy
+     * before the buffer. So joining never waits while the producer is locked out.
+     * </p>
+     *
+     * @param bufferFactory creates the subscriber's buffer for the entities following the replay
+     * @return the subscriber's stream of the replayed and following entities, closing it leaves the broadcast,
+     * or {@code null} if the stream cannot be joined
+     */
+    Stream<T> join(Supplier<AsyncJPAStreamingBuffer<T>> bufferFactory) {
+        List<T> replayed;
+        AsyncJPAStreamingBuffer<T> buffer;
+        synchronized (lock) {
+            if (!joinable) {
+                return null;
+            }
+            replayed = List.copyOf(replay);
+            buffer = bufferFactory.get();
+            List<AsyncJPAStreamingBuffer<T>> joined = new ArrayList<>(subscribers);
+            joined.add(buffer);
+            subscribers = List.copyOf(joined);
+        }
+        return Stream.concat(replayed.stream(), buffer.stream()); // closing closes the buffer's stream
+    }
+
+    @Override
+    public void offer(T item) {
+        List<AsyncJPAStreamingBuffer<T>> receivers;
+        synchronized (lock) {
+            if (replay != null) {
+                if (replay.size() < replayCapacity) {
+                    replay.add(item);
+                } else {
+                    unjoinable();
+                }
+            }
+            receivers = subscribers; // later subscribers receive the item from the replay
+        }
+
+        for (AsyncJPAStreamingBuffer<T> receiver : receivers) {
+            try {
+                receiver.offer(item);
+            } catch (ClosedException e) {
+                leave(receiver);
+            }
+        }
+    }
+
+    @Override
+    public void addError(Throwable throwable) {
+        subscribersAfterEnd().forEach(subscriber -> subscriber.addError(throwable));
+    }
+
+    @Override
+    public void close() {
+        subscribersAfterEnd().forEach(AsyncJPAStreamingBuffer::close);
+    }
+
+    @Override
+    public void abort(Throwable throwable) {
+        queryCancellation.cancel();
+        subscribersAfterEnd().forEach(subscriber -> subscriber.abort(throwable));
+    }
+
+    /**
+     * Registers the query of the shared stream, the subscribers' buffers do not know it. It is cancelled when the
+     * stream is aborted, the subscribers closing their streams stop the async thread on its next entity.
+     */
+    @Override
+    public void cancelQueryWith(Runnable cancelQuery) {
+        queryCancellation.register(cancelQuery);
+    }
+
+    @Override
+    public int size() {
+        return subscribers.stream()
+                          .mapToInt(AsyncJPAStreamingBuffer::size)
+                          .max()
+                          .orElse(0);
+    }
+
+    @Override
+    public long getProducerWaitNanos() {
+        return subscribers.stream()
+                          .mapToLong(AsyncJPAStreamingBuffer::getProducerWaitNanos)
+                          .sum();
+    }
+
+    @Override
+    public long getConsumerWaitNanos() {
+        return subscribers.stream()
+                          .mapToLong(AsyncJPAStreamingBuffer::getConsumerWaitNanos)
+                          .sum();
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void leave(AsyncJPAStreamingBuffer<T> subscriber) {
+        synchronized (lock) {
+            List<AsyncJPAStreamingBuffer<T>> remaining = new ArrayList<>(subscribers);
+            remaining.remove(subscriber);
+            subscribers = List.copyOf(remaining);
+            if (remaining.isEmpty()) {
+                unjoinable(); // nobody is left to cancel the joined stream
+                throw new ClosedException();
+            }
+        }
+    }
+
+    private List<AsyncJPAStreamingBuffer<T>> subscribersAfterEnd() {
+        synchronized (lock) {
+            unjoinable();
+            return subscribers;
+        }
+    }
+
+    private void unjoinable() {
+        if (joinable) {
+            joinable = false;
+            replay = null;
+            onUnjoinable.accept(this);
+        }
+    }
+
+}
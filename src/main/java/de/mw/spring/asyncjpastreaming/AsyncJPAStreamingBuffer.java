@@ -0,0 +1,564 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Bounded single-producer/single-consumer buffer between the async streaming thread and the consuming thread.
+ * <p>
+ * The producer (async thread) {@link #offer(Object) offers} entities and finally {@link #close() closes} the buffer,
+ * optionally after {@link #addError(Throwable) adding an error}. The consumer reads the buffer as {@link Spliterator}
+ * via {@link #stream()}, closing the stream {@link #cancel() cancels} the producer.
+ * </p>
+ * <p>
+ * Entities are stored in array segments which are recycled between producer and consumer, so no garbage is produced
+ * per entity in steady state. Both sides only synchronize on the segment indices: the producer publishes its index
+ * every {@code chunkSize} entities, the consumer releases its index in small batches or when the buffer ran empty.
+ * A side waiting for the other spins for a short while and then parks until it is signalled.
+ * </p>
+ * <p>
+ * With an {@link AsyncJPAStreamingBufferCapacity} the number of buffered entities is limited by the reserved capacity,
+ * which is adapted by the consumer based on the time both sides waited for each other.
+ * </p>
+ */
+final class AsyncJPAStreamingBuffer<T> implements AsyncJPAStreamingSink<T>, Spliterator<T> {
+
+    private static final int MAX_SEGMENT_SIZE = 1024;
+
+    private static final int MAX_RELEASE_INTERVAL = 64;
+
+    static final int SPIN_TRIES = 128;
+
+    /**
+     * Upper bound of a single park, guards against a missed signal between both threads
+     */
+    static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Counters written per entity are kept in padded arrays, so producer and consumer do not share cache lines
+     */
+    private static final int PAD = 16;
+
+    // indices into indices array
+    private static final int PRODUCER_INDEX = PAD;
+    private static final int CONSUMER_INDEX = PAD * 2;
+
+    // indices into producer array
+    private static final int PRODUCER_POSITION = PAD;
+    private static final int PUBLISHED_POSITION = PAD + 1;
+    private static final int CONSUMER_INDEX_CACHE = PAD + 2;
+
+    // indices into consumer array
+    private static final int CONSUMER_POSITION = PAD;
+    private static final int RELEASED_POSITION = PAD + 1;
+    private static final int PRODUCER_INDEX_CACHE = PAD + 2;
+
+    private static final VarHandle INDICES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle SPARE_SEGMENT;
+
+    static {
+        try {
+            SPARE_SEGMENT = MethodHandles.lookup().findVarHandle(AsyncJPAStreamingBuffer.class, "spareSegment", Segment.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int chunkSize;
+
+    private final int releaseInterval;
+
+    private final int mask;
+
+    private final AsyncJPAStreamingBufferCapacity capacityControl;
+
+    private final AsyncJPAStreamingQueryCancellation queryCancellation;
+
+    // shared state
+    private volatile int capacity;
+    private volatile long producerWaitNanos;
+    private final long[] indices = new long[PAD * 3];
+    private volatile Segment spareSegment;
+    private volatile Thread producerWaiter;
+    private volatile Thread consumerWaiter;
+    private volatile boolean closed;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private volatile Throwable aborted;
+
+    // producer state
+    private final long[] producer = new long[PAD * 2];
+    private Segment producerSegment;
+
+    // consumer state
+    private final long[] consumer = new long[PAD * 2];
+    private Segment consumerSegment;
+    private volatile long consumerWaitNanos;
+
+
+    /**
+     * Creates a buffer cancelling the registered query only once, without retries.
+     *
+     * @param capacity max number of entities in the buffer
+     * @param chunkSize number of entities the producer hands over at once
+     */
+    AsyncJPAStreamingBuffer(int capacity, int chunkSize) {
+        this(capacity, chunkSize, new AsyncJPAStreamingQueryCancellation(null));
+    }
+
+    /**
+     * @param capacity max number of entities in the buffer
+     * @param chunkSize number of entities the producer hands over at once
+     * @param queryCancellation cancellation of the stream's query when the consumer closes the stream
+     */
+    AsyncJPAStreamingBuffer(int capacity, int chunkSize, AsyncJPAStreamingQueryCancellation queryCancellation) {
+        this(null, capacity, capacity, chunkSize, queryCancellation);
+    }
+
+    /**
+     * Creates a buffer cancelling the registered query only once, without retries.
+     *
+     * @param capacityControl capacity reserved from the global budget
+     * @param chunkSize number of entities the producer hands over at once
+     */
+    AsyncJPAStreamingBuffer(AsyncJPAStreamingBufferCapacity capacityControl, int chunkSize) {
+        this(capacityControl, chunkSize, new AsyncJPAStreamingQueryCancellation(null));
+    }
+
+    /**
+     * @param capacityControl capacity reserved from the global budget
+     * @param chunkSize number of entities the producer hands over at once
+     * @param queryCancellation cancellation of the stream's query when the consumer closes the stream
+     */
+    AsyncJPAStreamingBuffer(AsyncJPAStreamingBufferCapacity capacityControl, int chunkSize, AsyncJPAStreamingQueryCancellation queryCancellation) {
+        this(capacityControl, capacityControl.getCapacity(), capacityControl.getMaxCapacity(), chunkSize, queryCancellation);
+    }
+
+    private AsyncJPAStreamingBuffer(AsyncJPAStreamingBufferCapacity capacityControl, int capacity, int maxCapacity, int chunkSize,
+                                    AsyncJPAStreamingQueryCancellation queryCancellation) {
+        this.capacityControl = capacityControl;
+        this.queryCancellation = queryCancellation;
+        this.capacity = Math.max(capacity, 1);
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.releaseInterval = Math.max(Math.min(this.capacity / 4, MAX_RELEASE_INTERVAL), 1);
+        int segmentSize = Math.max(Integer.highestOneBit(Math.min(Math.max(maxCapacity, 1) - 1, MAX_SEGMENT_SIZE - 1)) << 1, 2);
+        this.mask = segmentSize - 1;
+        this.producerSegment = new Segment(segmentSize);
+        this.consumerSegment = producerSegment;
+    }
+
+    /**
+     * Returns the consuming side of the buffer as stream. Closing the stream cancels the producer.
+     */
+    Stream<T> stream() {
+        return StreamSupport.stream(this, false)
+                            .onClose(this::cancel);
+    }
+
+    // ---- producer side ----
+
+    /**
+     * Adds an entity to the buffer, waits while the buffer is full.
+     *
+     * @throws ClosedException when the consumer closed the stream
+     * @throws AsyncJPAStreamingException when the producer was interrupted while waiting, which fails the stream
+     */
+    @Override
+    public void offer(T item) {
+        Objects.requireNonNull(item);
+        if (cancelled) {
+            throw new ClosedException();
+        }
+
+        long position = producer[PRODUCER_POSITION];
+        if (position - producer[CONSUMER_INDEX_CACHE] >= capacity) {
+            awaitCapacity(position);
+        }
+
+        int offset = (int) position & mask;
+        if (offset == 0 && position != 0) {
+            producerSegment = nextProducerSegment();
+        }
+        producerSegment.items[offset] = item;
+        producer[PRODUCER_POSITION] = ++position;
+
+        if (position - producer[PUBLISHED_POSITION] >= chunkSize) {
+            publish();
+        }
+    }
+
+    /**
+     * Adds an entity to the buffer if it is not full, without waiting.
+     *
+     * @return {@code false} when the buffer is full
+     * @throws ClosedException when the consumer closed the stream
+     */
+    boolean tryOffer(T item) {
+        long position = producer[PRODUCER_POSITION];
+        if (position - producer[CONSUMER_INDEX_CACHE] >= capacity) {
+            long consumerIndex = (long) INDICES.getVolatile(indices, CONSUMER_INDEX);
+            producer[CONSUMER_INDEX_CACHE] = consumerIndex;
+            if (position - consumerIndex >= capacity) {
+                publish(); // hand over pending entities of the current chunk
+                return false;
+            }
+        }
+        offer(item); // does not wait
+        return true;
+    }
+
+    /**
+     * Signals the consumer that an error occurred, the error is thrown after all buffered entities are consumed.
+     * Has no effect when the buffer is already closed.
+     */
+    @Override
+    public void addError(Throwable throwable) {
+        if (!closed) {
+            error = throwable;
+            close();
+        }
+    }
+
+    /**
+     * Hands over the remaining entities and signals the consumer that no more entities will follow.
+     */
+    @Override
+    public void close() {
+        publish();
+        closed = true;
+        signal(consumerWaiter);
+    }
+
+    @Override
+    public void cancelQueryWith(Runnable cancelQuery) {
+        queryCancellation.register(cancelQuery);
+    }
+
+    @Override
+    public int size() {
+        long size = (long) INDICES.getVolatile(indices, PRODUCER_INDEX) - (long) INDICES.getVolatile(indices, CONSUMER_INDEX);
+        return (int) Math.max(Math.min(size, Integer.MAX_VALUE), 0);
+    }
+
+    @Override
+    public long getProducerWaitNanos() {
+        return producerWaitNanos;
+    }
+
+    @Override
+    public long getConsumerWaitNanos() {
+        return consumerWaitNanos;
+    }
+
+    private Segment nextProducerSegment() {
+        Segment segment = (Segment) SPARE_SEGMENT.getAndSet(this, null);
+        if (segment == null) {
+            segment = new Segment(mask + 1);
+        } else {
+            segment.next = null;
+        }
+        producerSegment.next = segment; // visible to the consumer with the next published index
+        return segment;
+    }
+
+    private void publish() {
+        long position = producer[PRODUCER_POSITION];
+        if (producer[PUBLISHED_POSITION] != position) {
+            producer[PUBLISHED_POSITION] = position;
+            INDICES.setVolatile(indices, PRODUCER_INDEX, position);
+            signal(consumerWaiter);
+        }
+    }
+
+    private void awaitCapacity(long position) {
+        long consumerIndex = (long) INDICES.getVolatile(indices, CONSUMER_INDEX);
+        producer[CONSUMER_INDEX_CACHE] = consumerIndex;
+        if (position - consumerIndex < capacity) {
+            return; // only the cached index was outdated
+        }
+
+        publish(); // hand over pending entities of the current chunk before waiting
+        long start = System.nanoTime();
+        try {
+            waitForCapacity(position);
+        } finally {
+            producerWaitNanos += System.nanoTime() - start; // single writer
+        }
+    }
+
+    private void waitForCapacity(long position) {
+        int spins = 0;
+        while (true) {
+            long consumerIndex = (long) INDICES.getVolatile(indices, CONSUMER_INDEX);
+            producer[CONSUMER_INDEX_CACHE] = consumerIndex;
+            if (position - consumerIndex < capacity) {
+                return;
+            }
+            if (cancelled) {
+                throw new ClosedException();
+            }
+
+            if (spins < SPIN_TRIES) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                checkInterrupted("the consumer");
+                producerWaiter = Thread.currentThread();
+                if (position - (long) INDICES.getVolatile(indices, CONSUMER_INDEX) >= capacity && !cancelled) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                producerWaiter = null;
+            }
+        }
+    }
+
+    // ---- consumer side ----
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        throwAborted();
+        T item = poll();
+        if (item == null) {
+            item = awaitItem();
+            if (item == null) {
+                return false;
+            }
+        }
+        action.accept(item);
+        return true;
+    }
+
+    /**
+     * Cancels the producer and fails the consumer with the given error, which is thrown on its next read.
+     */
+    @Override
+    public void abort(Throwable throwable) {
+        aborted = throwable;
+        cancel();
+        signal(consumerWaiter);
+    }
+
+    /**
+     * Closes the consuming side, the producer stops with a {@link ClosedException} on its next offer
+     * or when its running query is cancelled.
+     */
+    void cancel() {
+        cancelled = true;
+        signal(producerWaiter);
+        releaseCapacity();
+        queryCancellation.cancel();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T poll() {
+        long position = consumer[CONSUMER_POSITION];
+        if (position >= consumer[PRODUCER_INDEX_CACHE]) {
+            long producerIndex = (long) INDICES.getAcquire(indices, PRODUCER_INDEX);
+            consumer[PRODUCER_INDEX_CACHE] = producerIndex;
+            if (position >= producerIndex) {
+                return null;
+            }
+        }
+
+        int offset = (int) position & mask;
+        if (offset == 0 && position != 0) {
+            Segment drained = consumerSegment;
+            consumerSegment = drained.next;
+            drained.next = null;
+            SPARE_SEGMENT.setRelease(this, drained); // all items of the drained segment were cleared already
+        }
+        Object[] items = consumerSegment.items;
+        T item = (T) items[offset];
+        items[offset] = null;
+        consumer[CONSUMER_POSITION] = ++position;
+
+        if (position - consumer[RELEASED_POSITION] >= releaseInterval) {
+            release();
+        }
+        return item;
+    }
+
+    private void release() {
+        long position = consumer[CONSUMER_POSITION];
+        if (consumer[RELEASED_POSITION] != position) {
+            consumer[RELEASED_POSITION] = position;
+            INDICES.setRelease(indices, CONSUMER_INDEX, position);
+            signal(producerWaiter);
+        }
+        if (capacityControl != null) {
+            adaptCapacity();
+        }
+    }
+
+    private void adaptCapacity() {
+        int adapted = capacityControl.adapt(producerWaitNanos, consumerWaitNanos);
+        if (adapted != capacity) {
+            capacity = adapted;
+            signal(producerWaiter);
+        }
+    }
+
+    private void releaseCapacity() {
+        if (capacityControl != null) {
+            capacityControl.release();
+        }
+    }
+
+    private T awaitItem() {
+        release(); // give the producer all the space before waiting
+
+        long start = System.nanoTime();
+        try {
+            return waitForItem();
+        } finally {
+            consumerWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    private T waitForItem() {
+        int spins = 0;
+        while (true) {
+            throwAborted();
+            if (closed) {
+                T item = poll(); // entities published before closing
+                if (item == null) {
+                    releaseCapacity();
+                    throwError();
+                }
+                return item;
+            }
+            if (cancelled) {
+                return null;
+            }
+
+            T item;
+            if (spins < SPIN_TRIES) {
+                spins++;
+                Thread.onSpinWait();
+                item = poll();
+            } else {
+                checkInterrupted("the next entity");
+                consumerWaiter = Thread.currentThread();
+                signal(producerWaiter); // producer might have missed our last released index
+                if (consumer[CONSUMER_POSITION] >= (long) INDICES.getVolatile(indices, PRODUCER_INDEX) && !closed && !cancelled) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                consumerWaiter = null;
+                item = poll();
+            }
+            if (item != null) {
+                return item;
+            }
+        }
+    }
+
+    // ---- merging consumer side ----
+
+    /**
+     * Returns the next entity without waiting, for a consumer reading several buffers.
+     * Releases the consumed space to the producer when there is no entity.
+     */
+    T pollNow() {
+        throwAborted();
+        T item = poll();
+        if (item == null) {
+            release();
+        }
+        return item;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Whether an entity is published or the buffer is closed, so the consumer would not wait.
+     */
+    boolean isReady() {
+        return closed || cancelled || consumer[CONSUMER_POSITION] < (long) INDICES.getVolatile(indices, PRODUCER_INDEX);
+    }
+
+    /**
+     * Ends consuming a closed buffer after polling returned no more entities, throws the error of the producer.
+     */
+    void drained() {
+        releaseCapacity();
+        throwAborted();
+        throwError();
+    }
+
+    /**
+     * Registers a consumer waiting for several buffers, which is signalled when entities are published.
+     */
+    void setConsumerWaiter(Thread waiter) {
+        consumerWaiter = waiter;
+        if (waiter != null) {
+            signal(producerWaiter); // producer might have missed the last released index
+        }
+    }
+
+    private void throwAborted() {
+        Throwable throwable = aborted;
+        if (throwable != null) {
+            releaseCapacity();
+            throw AsyncJPAStreamingException.propagate(throwable);
+        }
+    }
+
+    private void throwError() {
+        if (error != null) {
+            throw AsyncJPAStreamingException.propagate(error);
+        }
+    }
+
+    /**
+     * Ends the wait of an interrupted thread, which would not park anymore, keeping its interrupt status.
+     */
+    static void checkInterrupted(String awaited) {
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new AsyncJPAStreamingException("Interrupted while waiting for " + awaited);
+        }
+    }
+
+    private static void signal(Thread waiter) {
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private static final class Segment {
+
+        private final Object[] items;
+
+        private Segment next;
+
+        private Segment(int size) {
+            this.items = new Object[size];
+        }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global budget of buffered entities shared by all active streams.
+ * <p>
+ * Buffers reserve their capacity from the budget and release it when the stream is consumed or closed,
+ * so a few slow consumers cannot fill the heap with buffered entities. The budget is counted in entities,
+ * as the size of an entity is not known.
+ * </p>
+ */
+final class AsyncJPAStreamingBufferBudget {
+
+    private final long capacity;
+
+    private final AtomicLong available;
+
+
+    AsyncJPAStreamingBufferBudget(long capacity) {
+        this.capacity = capacity;
+        this.available = new AtomicLong(capacity);
+    }
+
+    boolean isUnlimited() {
+        return capacity == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reserves up to the requested capacity. The minimum is always granted, even when it exceeds the budget,
+     * so every stream can make progress.
+     *
+     * @return the granted capacity
+     */
+    int reserve(int requested, int minimum) {
+        if (isUnlimited()) {
+            return requested;
+        }
+        while (true) {
+            long current = available.get();
+            int granted = (int) Math.max(Math.min(requested, current), Math.min(minimum, requested));
+            if (available.compareAndSet(current, current - granted)) {
+                return granted;
+            }
+        }
+    }
+
+    void release(int reserved) {
+        if (!isUnlimited()) {
+            available.addAndGet(reserved);
+        }
+    }
+
+    long getAvailable() {
+        return available.get();
+    }
+
+}
@@ -0,0 +1,134 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Capacity of a single {@link AsyncJPAStreamingBuffer}, reserved from the global {@link AsyncJPAStreamingBufferBudget}.
+ * <p>
+ * An adaptive capacity compares how long the producer waited for space and the consumer waited for entities
+ * within a time window, which reflects their throughput:
+ * <ul>
+ *     <li>both sides waited: the rates fluctuate, a larger buffer evens them out, so the capacity is doubled</li>
+ *     <li>only one side waited most of the time: one side is constantly slower, a larger buffer would only hold
+ *     more entities in memory, so the capacity is halved</li>
+ * </ul>
+ * The capacity always stays within the configured bounds and the global budget.
+ * Adapting is done by the consuming thread only.
+ * </p>
+ */
+@Slf4j
+final class AsyncJPAStreamingBufferCapacity {
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Share of the window both sides waited to consider the rates fluctuating
+     */
+    private static final double FLUCTUATING_WAIT_SHARE = 0.05;
+
+    /**
+     * Share of the window one side waited to consider it constantly slower
+     */
+    private static final double BOTTLENECK_WAIT_SHARE = 0.5;
+
+    private final AsyncJPAStreamingBufferBudget budget;
+
+    private final int minCapacity;
+
+    private final int maxCapacity;
+
+    private final boolean adaptive;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private volatile int reserved;
+
+    // window state of the consuming thread
+    private long windowStart = System.nanoTime();
+    private long producerWaitNanos;
+    private long consumerWaitNanos;
+
+
+    private AsyncJPAStreamingBufferCapacity(AsyncJPAStreamingBufferBudget budget, int minCapacity, int maxCapacity, boolean adaptive) {
+        this.budget = budget;
+        this.minCapacity = minCapacity;
+        this.maxCapacity = maxCapacity;
+        this.adaptive = adaptive;
+        this.reserved = budget.reserve(adaptive ? minCapacity : maxCapacity, minCapacity);
+    }
+
+    /**
+     * Fixed capacity, reduced when the global budget is exhausted
+     */
+    static AsyncJPAStreamingBufferCapacity fixed(AsyncJPAStreamingBufferBudget budget, int capacity, int minCapacity) {
+        return new AsyncJPAStreamingBufferCapacity(budget, Math.min(minCapacity, capacity), capacity, false);
+    }
+
+    /**
+     * Adaptive capacity within the given bounds, starting with the lower bound
+     */
+    static AsyncJPAStreamingBufferCapacity adaptive(AsyncJPAStreamingBufferBudget budget, int minCapacity, int maxCapacity) {
+        return new AsyncJPAStreamingBufferCapacity(budget, Math.min(minCapacity, maxCapacity), maxCapacity, true);
+    }
+
+    int getCapacity() {
+        return reserved;
+    }
+
+    int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * Evaluates the wait times of the current window when it is over.
+     *
+     * @param totalProducerWaitNanos accumulated time the producer waited for space
+     * @param totalConsumerWaitNanos accumulated time the consumer waited for entities
+     * @return the new capacity
+     */
+    int adapt(long totalProducerWaitNanos, long totalConsumerWaitNanos) {
+        long now = System.nanoTime();
+        long window = now - windowStart;
+        if (!adaptive || window < WINDOW_NANOS || released.get()) {
+            return reserved;
+        }
+
+        double producerWaited = (totalProducerWaitNanos - producerWaitNanos) / (double) window;
+        double consumerWaited = (totalConsumerWaitNanos - consumerWaitNanos) / (double) window;
+        windowStart = now;
+        producerWaitNanos = totalProducerWaitNanos;
+        consumerWaitNanos = totalConsumerWaitNanos;
+
+        int capacity = reserved;
+        if (producerWaited > FLUCTUATING_WAIT_SHARE && consumerWaited > FLUCTUATING_WAIT_SHARE) {
+            int requested = (int) Math.min((long) capacity * 2, maxCapacity) - capacity;
+            if (requested > 0) {
+                capacity += budget.reserve(requested, 0);
+            }
+        } else if (producerWaited > BOTTLENECK_WAIT_SHARE || consumerWaited > BOTTLENECK_WAIT_SHARE) {
+            int shrunk = Math.max(capacity / 2, minCapacity);
+            budget.release(capacity - shrunk);
+            capacity = shrunk;
+        }
+
+        if (capacity != reserved) {
+            log.trace("Adapting buffer capacity from {} to {} (producer waited {}%, consumer waited {}%)",
+                      reserved, capacity, Math.round(producerWaited * 100), Math.round(consumerWaited * 100));
+            reserved = capacity;
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns the reserved capacity to the budget, can be called more than once.
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            budget.release(reserved);
+        }
+    }
+
+}
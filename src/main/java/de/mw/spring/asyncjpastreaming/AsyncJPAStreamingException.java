@@ -0,0 +1,28 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * Signals a failure of an {@link AsyncJPAStreaming} stream to the consuming thread.
+ */
+public class AsyncJPAStreamingException extends RuntimeException {
+
+    public AsyncJPAStreamingException(String message) {
+        super(message);
+    }
+
+    public AsyncJPAStreamingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Rethrows unchecked exceptions of the async thread as they are and wraps checked ones.
+     */
+    static RuntimeException propagate(Throwable throwable) {
+        if (throwable instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        } else if (throwable instanceof Error error) {
+            throw error;
+        }
+        return new AsyncJPAStreamingException("Async JPA streaming failed", throwable);
+    }
+
+}
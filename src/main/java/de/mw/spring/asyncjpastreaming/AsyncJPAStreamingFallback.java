@@ -0,0 +1,23 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * How {@link AsyncJPAStreaming} methods return their stream when async streaming is disabled by
+ * {@code app.configuration.asyncjpastreaming.enabled=false}, configured by
+ * {@code app.configuration.asyncjpastreaming.fallback}.
+ */
+public enum AsyncJPAStreamingFallback {
+
+    /**
+     * Fetches the whole result to a temporary list within the transaction of the method, like
+     * {@link jakarta.persistence.TypedQuery#getResultList()}. The memory is not bounded.
+     */
+    LIST,
+
+    /**
+     * Streams with an open cursor in the calling thread. The (readonly) transaction of the method is extended to
+     * the end of the stream and committed when the stream is closed, so memory is bounded without an extra thread
+     * or connection. The stream has to be closed in the calling thread, which is bound to the transaction until then.
+     */
+    STREAM
+
+}
@@ -0,0 +1,417 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.internal.DatasourceConnectionProviderImpl;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the JDBC fetch size of the streamed queries per method, enabled with
+ * {@code app.configuration.asyncjpastreaming.fetchSize.adaptive=true}.
+ * <p>
+ * The queries executed by the async thread of a stream before its first entity start with the fetch size learned
+ * from the previous streams of the method, or the buffer capacity of the first one. The streamed query is the first
+ * of them whose result set is still open with the first entity, other queries, e.g. a lookup before the stream or
+ * the loading of associations, have been read completely. After every fetch the fetch size of its result set
+ * is adjusted:
+ * <ul>
+ *     <li>doubled while the consumer waited for the async thread more than the other way round, fewer round trips
+ *     to the database</li>
+ *     <li>halved while the async thread waited for a slow consumer, fewer rows waiting in the driver</li>
+ *     <li>limited to {@code fetchSize.maxBytes} (default 1 MB) per fetch, estimated from the declared column sizes</li>
+ * </ul>
+ * within {@code fetchSize.min} (default 10) and {@code fetchSize.max} (default 10000). Drivers which cannot change
+ * the fetch size of an open cursor use the learned one with the next stream. Queries with a fetch size hint keep it.
+ * </p>
+ * <p>
+ * The statements are seen through a Hibernate connection provider wrapping the connections of the data source
+ * acquired by the threads of the {@code asyncJPAStreamingTaskExecutor}, other transactions get the connections as
+ * they are. The default fetch size {@code hibernate.jdbc.fetch_size} which Hibernate sets after preparing a statement
+ * is replaced by the tuned one.
+ * The connection provider is set as {@code hibernate.connection.provider_class}, so the fetch size is not tuned
+ * when another one is configured, e.g. with {@code spring.jpa.properties.hibernate.connection.provider_class}:
+ * a warning is logged and the configured provider is kept.
+ * The learned fetch size is published as gauge {@code asyncjpastreaming.fetch.size} per method.
+ * </p>
+ */
+@Component
+@Slf4j
+class AsyncJPAStreamingFetchSize implements HibernatePropertiesCustomizer {
+
+    /**
+     * Upper bound of the size of a column, e.g. for LOBs
+     */
+    private static final int MAX_COLUMN_BYTES = 4096;
+
+    private static final ThreadLocal<QueryTuning> CURRENT = new ThreadLocal<>();
+
+    private final AsyncJPAStreamingMetrics metrics;
+
+    // disabled by customize when another connection provider is configured
+    private boolean adaptive;
+
+    private final int minFetchSize;
+
+    private final int maxFetchSize;
+
+    private final long maxFetchBytes;
+
+    private final Map<String, AtomicInteger> learned = new ConcurrentHashMap<>();
+
+    private Integer defaultFetchSize;
+
+
+    AsyncJPAStreamingFetchSize(AsyncJPAStreamingMetrics metrics,
+                               @Value("${app.configuration.asyncjpastreaming.fetchSize.adaptive:false}") boolean adaptive,
+                               @Value("${app.configuration.asyncjpastreaming.fetchSize.min:10}") int minFetchSize,
+                               @Value("${app.configuration.asyncjpastreaming.fetchSize.max:10000}") int maxFetchSize,
+                               @Value("${app.configuration.asyncjpastreaming.fetchSize.maxBytes:1048576}") long maxFetchBytes) {
+        this.metrics = metrics;
+        this.adaptive = adaptive;
+        this.minFetchSize = Math.max(minFetchSize, 1);
+        this.maxFetchSize = Math.max(maxFetchSize, this.minFetchSize);
+        this.maxFetchBytes = maxFetchBytes;
+    }
+
+    @Override
+    public void customize(Map<String, Object> hibernateProperties) {
+        if (!adaptive) {
+            return;
+        }
+        Object connectionProvider = hibernateProperties.get(AvailableSettings.CONNECTION_PROVIDER);
+        if (connectionProvider != null) {
+            log.warn("Adaptive fetch size disabled, it requires its own {} instead of the configured {}",
+                     AvailableSettings.CONNECTION_PROVIDER, connectionProvider);
+            adaptive = false;
+            return;
+        }
+        Object fetchSize = hibernateProperties.get(AvailableSettings.STATEMENT_FETCH_SIZE);
+        if (fetchSize != null) {
+            defaultFetchSize = Integer.valueOf(fetchSize.toString().trim());
+        }
+        hibernateProperties.put(AvailableSettings.CONNECTION_PROVIDER, new TuningConnectionProvider());
+    }
+
+    /**
+     * Starts tuning the query of the stream in the current thread, the returned tuning must be closed after the stream.
+     *
+     * @param sink sink of the stream, its wait times show whether the consumer or the database is slower
+     * @param options name and buffer capacity of the stream, {@code null} to not tune the query
+     */
+    Tuning tune(AsyncJPAStreamingSink<?> sink, AsyncJPAStreamingOptions options) {
+        if (!adaptive || options == null || CURRENT.get() != null) {
+            return Tuning.NONE;
+        }
+        AtomicInteger fetchSize = learned.get(options.getName());
+        int initial = fetchSize != null ? fetchSize.get() : clamp(options.getBufferCapacity(), maxFetchSize);
+        QueryTuning tuning = new QueryTuning(sink, options.getName(), initial);
+        CURRENT.set(tuning);
+        return tuning;
+    }
+
+    private void learn(String name, int fetchSize) {
+        learned.computeIfAbsent(name, method -> {
+                   AtomicInteger value = new AtomicInteger();
+                   metrics.fetchSize(method, value);
+                   return value;
+               })
+               .set(fetchSize);
+    }
+
+    private int clamp(long fetchSize, int maxFetchSize) {
+        return (int) Math.max(Math.min(fetchSize, maxFetchSize), minFetchSize);
+    }
+
+    private static Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(AsyncJPAStreamingFetchSize.class.getClassLoader(), new Class<?>[]{ConnectionProxy.class},
+                                                   new TuningConnection(connection));
+    }
+
+    /**
+     * Returns the connection of the data source wrapped by {@link #wrap(Connection)}, other connections as they are.
+     */
+    private static Connection targetConnection(Connection connection) {
+        if (Proxy.isProxyClass(connection.getClass()) && Proxy.getInvocationHandler(connection) instanceof TuningConnection tuning) {
+            return tuning.connection();
+        }
+        return connection;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * Passes a statement prepared while tuning a stream to its tuning.
+     */
+    private static Object prepared(Object result) {
+        QueryTuning tuning = CURRENT.get();
+        if (tuning != null && result instanceof PreparedStatement statement && !(result instanceof CallableStatement)) {
+            return tuning.prepared(statement);
+        }
+        return result;
+    }
+
+    /**
+     * Provides the connections of the data source configured for Hibernate, wrapped for the transactions of streams,
+     * so the statements of the streamed queries are seen.
+     */
+    private static final class TuningConnectionProvider extends DatasourceConnectionProviderImpl {
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection connection = super.getConnection();
+            return AsyncJPAStreamingTransactionSupport.isStreamingThread() ? wrap(connection) : connection;
+        }
+
+        @Override
+        public void closeConnection(Connection connection) throws SQLException {
+            super.closeConnection(targetConnection(connection));
+        }
+
+    }
+
+    private record TuningConnection(Connection connection) implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            return switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "getTargetConnection" -> connection;
+                default -> prepared(AsyncJPAStreamingFetchSize.invoke(connection, method, args));
+            };
+        }
+
+    }
+
+    /**
+     * Tuning of the query of one stream in its async thread.
+     */
+    interface Tuning extends AutoCloseable {
+
+        Tuning NONE = new Tuning() {
+
+            @Override
+            public void fetched() {
+            }
+
+            @Override
+            public void close() {
+            }
+
+        };
+
+        /**
+         * Called by the async thread after every entity of the query.
+         */
+        void fetched();
+
+        /**
+         * Ends the tuning in the async thread after the query.
+         */
+        @Override
+        void close();
+
+    }
+
+    private final class QueryTuning implements Tuning {
+
+        private final AsyncJPAStreamingSink<?> sink;
+
+        private final String name;
+
+        private int fetchSize;
+
+        private int maxFetchSize = AsyncJPAStreamingFetchSize.this.maxFetchSize;
+
+        private final List<TunedStatement> executed = new ArrayList<>();
+
+        private ResultSet resultSet;
+
+        private boolean tuned;
+
+        private boolean adjusting;
+
+        private long rows;
+
+        private long nextAdjustment;
+
+        private long producerWaitNanos;
+
+        private long consumerWaitNanos;
+
+        private QueryTuning(AsyncJPAStreamingSink<?> sink, String name, int fetchSize) {
+            this.sink = sink;
+            this.name = name;
+            this.fetchSize = fetchSize;
+        }
+
+        /**
+         * Returns a statement prepared before the first entity wrapped, to execute it with the tuned fetch size
+         * and to see its result set.
+         */
+        private PreparedStatement prepared(PreparedStatement statement) {
+            if (rows > 0) {
+                return statement; // e.g. loading associations of a streamed entity
+            }
+            return (PreparedStatement) Proxy.newProxyInstance(AsyncJPAStreamingFetchSize.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                                                              new TunedStatement(statement));
+        }
+
+        @Override
+        public void fetched() {
+            if (++rows < nextAdjustment) {
+                return;
+            }
+            try {
+                if (rows == 1) {
+                    start();
+                } else {
+                    adjust();
+                }
+            } catch (SQLException e) {
+                log.debug("Cannot change fetch size of stream {} while fetching: {}", name, e.toString());
+                adjusting = false;
+            }
+            nextAdjustment = adjusting ? rows + fetchSize : Long.MAX_VALUE;
+        }
+
+        /**
+         * Finds the streamed query, checks whether it has a fetch size of its own and limits the fetch size
+         * to the bytes per fetch.
+         */
+        private void start() throws SQLException {
+            TunedStatement streamed = streamed();
+            executed.clear();
+            if (streamed == null) {
+                return;
+            }
+            if (streamed.hinted) {
+                log.trace("Query of stream {} has a fetch size of its own, not tuned", name);
+                return;
+            }
+            resultSet = streamed.resultSet;
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            long rowBytes = 0;
+            for (int column = 1; column <= metaData.getColumnCount(); column++) {
+                rowBytes += Math.min(Math.max(metaData.getColumnDisplaySize(column), 1), MAX_COLUMN_BYTES);
+            }
+            maxFetchSize = clamp(maxFetchBytes / Math.max(rowBytes, 1), AsyncJPAStreamingFetchSize.this.maxFetchSize);
+            producerWaitNanos = sink.getProducerWaitNanos();
+            consumerWaitNanos = sink.getConsumerWaitNanos();
+            tuned = true;
+            adjusting = true;
+            fetchSize = Math.min(fetchSize, maxFetchSize); // learned even if the driver cannot change it
+            resultSet.setFetchSize(fetchSize); // for the following fetches, the learned one may be smaller
+        }
+
+        private void adjust() throws SQLException {
+            long producerWaited = sink.getProducerWaitNanos() - producerWaitNanos;
+            long consumerWaited = sink.getConsumerWaitNanos() - consumerWaitNanos;
+            producerWaitNanos += producerWaited;
+            consumerWaitNanos += consumerWaited;
+            int adjusted = fetchSize;
+            if (consumerWaited > producerWaited) {
+                adjusted = clamp(2L * fetchSize, maxFetchSize);
+            } else if (producerWaited > consumerWaited) {
+                adjusted = clamp(fetchSize / 2, maxFetchSize);
+            }
+            if (adjusted != fetchSize) {
+                log.trace("Fetch size of stream {} changed from {} to {}", name, fetchSize, adjusted);
+                fetchSize = adjusted;
+                resultSet.setFetchSize(adjusted);
+            }
+        }
+
+        /**
+         * Returns the first query executed before the first entity whose result set is still open.
+         */
+        private TunedStatement streamed() throws SQLException {
+            for (TunedStatement statement : executed) {
+                if (!statement.resultSet.isClosed()) {
+                    return statement;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            CURRENT.remove();
+            if (tuned) {
+                learn(name, fetchSize);
+            }
+        }
+
+        /**
+         * Statement prepared before the first entity, executed with the tuned fetch size unless the query
+         * has a fetch size hint.
+         */
+        private final class TunedStatement implements InvocationHandler {
+
+            private final PreparedStatement statement;
+
+            private boolean hinted;
+
+            private ResultSet resultSet;
+
+            private TunedStatement(PreparedStatement statement) {
+                this.statement = statement;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "setFetchSize":
+                        if (defaultFetchSize != null && (int) args[0] == defaultFetchSize) {
+                            return null; // replaced by the tuned fetch size
+                        }
+                        hinted = true;
+                        break;
+                    case "executeQuery":
+                        if (!hinted && rows == 0) {
+                            statement.setFetchSize(fetchSize);
+                        }
+                        break;
+                }
+                Object result = AsyncJPAStreamingFetchSize.invoke(statement, method, args);
+                if (result instanceof ResultSet executedResultSet && rows == 0 && resultSet == null) {
+                    resultSet = executedResultSet;
+                    executed.add(this);
+                }
+                return result;
+            }
+
+        }
+
+    }
+
+}
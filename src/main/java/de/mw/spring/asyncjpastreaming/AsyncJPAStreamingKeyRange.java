@@ -0,0 +1,56 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range of numeric keys, e.g. ids, from inclusive to exclusive.
+ * <p>
+ * Parameter of {@link AsyncJPAStreaming#partitions() partitioned} methods, which must only stream the entities
+ * with keys inside the range, e.g. {@code where p.id >= :#{#range.from} and p.id < :#{#range.to}}.
+ * </p>
+ *
+ * @param from first key of the range
+ * @param to key after the last key of the range
+ */
+public record AsyncJPAStreamingKeyRange(long from, long to) {
+
+    public AsyncJPAStreamingKeyRange {
+        if (to < from) {
+            throw new IllegalArgumentException("Key range must not end before it starts: [" + from + ", " + to + ")");
+        }
+    }
+
+    /**
+     * Range of all keys from min to max (both inclusive), e.g. the result of {@code select min(p.id), max(p.id) from Person p}.
+     */
+    public static AsyncJPAStreamingKeyRange closed(long min, long max) {
+        return new AsyncJPAStreamingKeyRange(min, Math.addExact(max, 1));
+    }
+
+    public long size() {
+        return Math.subtractExact(to, from);
+    }
+
+    /**
+     * Splits the range into consecutive ranges of almost equal size.
+     *
+     * @param partitions max number of ranges, the range is split into less ranges when it has less keys
+     */
+    public List<AsyncJPAStreamingKeyRange> split(int partitions) {
+        long size = size();
+        int count = (int) Math.max(Math.min(partitions, size), 1);
+        long partitionSize = size / count;
+        long remainder = size % count;
+
+        List<AsyncJPAStreamingKeyRange> ranges = new ArrayList<>(count);
+        long start = from;
+        for (int i = 0; i < count; i++) {
+            long end = start + partitionSize + (i < remainder ? 1 : 0);
+            ranges.add(new AsyncJPAStreamingKeyRange(start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+}
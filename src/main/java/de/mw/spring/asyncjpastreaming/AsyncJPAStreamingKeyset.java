@@ -0,0 +1,88 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Keyset pagination of a stream by {@link AsyncJPAStreamingSupport#streamAsyncKeyset(AsyncJPAStreamingKeyset, AsyncJPAStreamingOptions)}.
+ * <p>
+ * The page query fetches the next page of entities ordered by a unique key, starting after the given key
+ * ({@code null} for the first page), e.g.:
+ * <pre>
+ * AsyncJPAStreamingKeyset.of((lastId, pageSize) -> repository.findByIdGreaterThanOrderByIdAsc(lastId == null ? 0 : lastId, Limit.of(pageSize)),
+ *                            Person::getId, 1000)
+ * </pre>
+ * The stream ends with the first page having less entities than the page size.
+ * </p>
+ * <p>
+ * The {@link #getLastKey() last key} is the resume token of the stream: it is the key of the last entity
+ * handed over to the consumer. A client which lost the stream can continue after it with a new keyset
+ * {@link #resumeAfter(Object) resuming after} the last key instead of restarting the export.
+ * </p>
+ *
+ * @param <T> entity type
+ * @param <K> key type
+ */
+public final class AsyncJPAStreamingKeyset<T, K> {
+
+    private final BiFunction<K, Integer, List<T>> pageQuery;
+
+    private final Function<T, K> keyExtractor;
+
+    private final int pageSize;
+
+    private volatile K lastKey;
+
+
+    private AsyncJPAStreamingKeyset(BiFunction<K, Integer, List<T>> pageQuery, Function<T, K> keyExtractor, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive, but was " + pageSize);
+        }
+        this.pageQuery = Objects.requireNonNull(pageQuery);
+        this.keyExtractor = Objects.requireNonNull(keyExtractor);
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param pageQuery fetches at most page size entities ordered by key after the given key, {@code null} for the first page
+     * @param keyExtractor unique key of an entity
+     * @param pageSize number of entities fetched per transaction
+     */
+    public static <T, K> AsyncJPAStreamingKeyset<T, K> of(BiFunction<K, Integer, List<T>> pageQuery, Function<T, K> keyExtractor, int pageSize) {
+        return new AsyncJPAStreamingKeyset<>(pageQuery, keyExtractor, pageSize);
+    }
+
+    /**
+     * Starts the stream after the given key, e.g. the {@link #getLastKey() last key} of a previous stream.
+     */
+    public AsyncJPAStreamingKeyset<T, K> resumeAfter(K lastKey) {
+        this.lastKey = lastKey;
+        return this;
+    }
+
+    /**
+     * Key of the last entity handed over to the consumer, or the key to resume after if none was handed over yet.
+     */
+    public K getLastKey() {
+        return lastKey;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    List<T> fetchPage(K after) {
+        return pageQuery.apply(after, pageSize);
+    }
+
+    K keyOf(T entity) {
+        return keyExtractor.apply(entity);
+    }
+
+    void consumed(T entity) {
+        lastKey = keyOf(entity);
+    }
+
+}
@@ -0,0 +1,140 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Maps the entities of a stream in micro-batches on a worker pool, preserving their order.
+ * <p>
+ * The consuming thread takes batches of entities from the source stream and submits them to the workers, keeping up
+ * to the given number of batches in flight. The mapped batches are returned in order of submission. So the async
+ * thread only fetches entities while the mapping runs concurrently on other cores, and the consumer only waits
+ * for mapped batches.
+ * </p>
+ * An error of the mapping function is thrown to the consumer when its batch is reached.
+ */
+final class AsyncJPAStreamingMappingSpliterator<T, R> implements Spliterator<R> {
+
+    private final Iterator<T> source;
+
+    private final Function<? super T, ? extends R> mapper;
+
+    private final Executor executor;
+
+    private final int batchSize;
+
+    private final int maxBatchesInFlight;
+
+    private final Queue<CompletableFuture<List<R>>> inFlight = new ArrayDeque<>();
+
+    private Iterator<R> current = Collections.emptyIterator();
+
+    private boolean sourceDrained;
+
+
+    private AsyncJPAStreamingMappingSpliterator(Iterator<T> source, Function<? super T, ? extends R> mapper, Executor executor,
+                                                int batchSize, int maxBatchesInFlight) {
+        this.source = source;
+        this.mapper = mapper;
+        this.executor = executor;
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxBatchesInFlight = Math.max(maxBatchesInFlight, 1);
+    }
+
+    /**
+     * Maps the source stream on the executor, closing the returned stream closes the source stream.
+     */
+    static <T, R> Stream<R> map(Stream<T> source, Function<? super T, ? extends R> mapper, Executor executor,
+                                int batchSize, int maxBatchesInFlight) {
+        AsyncJPAStreamingMappingSpliterator<T, R> spliterator = new AsyncJPAStreamingMappingSpliterator<>(source.iterator(), mapper, executor,
+                                                                                                        batchSize, maxBatchesInFlight);
+        return StreamSupport.stream(spliterator, false)
+                            .onClose(spliterator::cancel)
+                            .onClose(source::close);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super R> action) {
+        while (!current.hasNext()) {
+            submitBatches();
+            CompletableFuture<List<R>> next = inFlight.poll();
+            if (next == null) {
+                return false;
+            }
+            current = join(next).iterator();
+        }
+        action.accept(current.next());
+        return true;
+    }
+
+    /**
+     * Submits batches until the maximum is in flight, stops early when the next mapped batch is ready.
+     */
+    private void submitBatches() {
+        while (!sourceDrained && inFlight.size() < maxBatchesInFlight) {
+            CompletableFuture<List<R>> next = inFlight.peek();
+            if (next != null && next.isDone()) {
+                return;
+            }
+            List<T> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && source.hasNext()) {
+                batch.add(source.next());
+            }
+            if (batch.size() < batchSize) {
+                sourceDrained = true;
+            }
+            if (!batch.isEmpty()) {
+                inFlight.add(CompletableFuture.supplyAsync(() -> mapBatch(batch), executor));
+            }
+        }
+    }
+
+    private List<R> mapBatch(List<T> batch) {
+        List<R> mapped = new ArrayList<>(batch.size());
+        for (T item : batch) {
+            mapped.add(mapper.apply(item));
+        }
+        return mapped;
+    }
+
+    private List<R> join(CompletableFuture<List<R>> batch) {
+        try {
+            return batch.join();
+        } catch (CompletionException e) {
+            throw AsyncJPAStreamingException.propagate(e.getCause());
+        }
+    }
+
+    private void cancel() {
+        inFlight.forEach(batch -> batch.cancel(false));
+        inFlight.clear();
+    }
+
+    @Override
+    public Spliterator<R> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+
+}
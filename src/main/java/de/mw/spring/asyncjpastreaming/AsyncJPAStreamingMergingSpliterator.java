@@ -0,0 +1,125 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Unordered merge of the buffers of a {@link AsyncJPAStreaming#partitions() partitioned} stream.
+ * <p>
+ * Drains the current buffer as long as it has entities and then continues with the next one, so all partitions
+ * are consumed in turn. When all buffers are empty, the consumer waits for any producer to publish entities.
+ * An error of a partition is thrown as soon as its buffered entities are consumed.
+ * </p>
+ */
+final class AsyncJPAStreamingMergingSpliterator<T> implements Spliterator<T> {
+
+    private final AsyncJPAStreamingBuffer<T>[] buffers;
+
+    private int remaining;
+
+    private int current;
+
+
+    @SuppressWarnings("unchecked")
+    private AsyncJPAStreamingMergingSpliterator(List<AsyncJPAStreamingBuffer<T>> buffers) {
+        this.buffers = buffers.toArray(AsyncJPAStreamingBuffer[]::new);
+        this.remaining = this.buffers.length;
+    }
+
+    /**
+     * Merges the buffers to a stream, closing the stream cancels all producers.
+     */
+    static <T> Stream<T> merge(List<AsyncJPAStreamingBuffer<T>> buffers) {
+        return StreamSupport.stream(new AsyncJPAStreamingMergingSpliterator<>(buffers), false)
+                            .onClose(() -> buffers.forEach(AsyncJPAStreamingBuffer::cancel));
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        int spins = 0;
+        while (remaining > 0) {
+            T item = poll();
+            if (item != null) {
+                action.accept(item);
+                return true;
+            }
+
+            if (remaining == 0) {
+                break;
+            } else if (spins < AsyncJPAStreamingBuffer.SPIN_TRIES) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                await();
+            }
+        }
+        return false;
+    }
+
+    private T poll() {
+        for (int i = 0; i < buffers.length; i++) {
+            AsyncJPAStreamingBuffer<T> buffer = buffers[current];
+            if (buffer != null) {
+                boolean closed = buffer.isClosed(); // read before polling, the producer publishes before closing
+                T item = buffer.pollNow();
+                if (item != null) {
+                    return item;
+                }
+                if (closed) {
+                    buffers[current] = null;
+                    remaining--;
+                    buffer.drained();
+                }
+            }
+            current = (current + 1) % buffers.length;
+        }
+        return null;
+    }
+
+    private void await() {
+        AsyncJPAStreamingBuffer.checkInterrupted("the next entity");
+        Thread thread = Thread.currentThread();
+        for (AsyncJPAStreamingBuffer<T> buffer : buffers) {
+            if (buffer != null) {
+                buffer.setConsumerWaiter(thread);
+            }
+        }
+        if (!isAnyReady()) {
+            LockSupport.parkNanos(this, AsyncJPAStreamingBuffer.PARK_NANOS);
+        }
+        for (AsyncJPAStreamingBuffer<T> buffer : buffers) {
+            if (buffer != null) {
+                buffer.setConsumerWaiter(null);
+            }
+        }
+    }
+
+    private boolean isAnyReady() {
+        for (AsyncJPAStreamingBuffer<T> buffer : buffers) {
+            if (buffer != null && buffer.isReady()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+
+}
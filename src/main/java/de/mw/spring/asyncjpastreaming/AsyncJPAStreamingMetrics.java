@@ -0,0 +1,293 @@
+package de.mw.spring.asyncjpastreaming;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Micrometer metrics and observations of {@link AsyncJPAStreaming} streams, tagged with the streamed method.
+ * <p>
+ * Meters per method:
+ * <ul>
+ *     <li>{@code asyncjpastreaming.streams.active}: streams with a running async thread</li>
+ *     <li>{@code asyncjpastreaming.stream.first}: time from the call until the first entity was fetched,
+ *     includes waiting for a thread and a connection</li>
+ *     <li>{@code asyncjpastreaming.stream.duration}: time from the call until the async thread finished, tagged with
+ *     the {@code outcome}: {@code completed}, {@code error} or {@code cancelled} when the consumer closed the stream early</li>
+ *     <li>{@code asyncjpastreaming.stream.rows}: entities fetched</li>
+ *     <li>{@code asyncjpastreaming.buffer.size}: entities waiting in the buffers of the running streams</li>
+ *     <li>{@code asyncjpastreaming.producer.blocked}: time the async threads waited for the consumers (full buffer or no demand)</li>
+ *     <li>{@code asyncjpastreaming.consumer.starved}: time the consumers waited for the async threads (empty buffer)</li>
+ *     <li>{@code asyncjpastreaming.fetch.size}: fetch size learned for the query, see {@link AsyncJPAStreamingFetchSize}</li>
+ * </ul>
+ * A mostly blocked producer points to the client as bottleneck, a mostly starved consumer to the database.
+ * </p>
+ * <p>
+ * Every stream is observed as {@code asyncjpastreaming.stream}. The observation is started in the calling thread
+ * and made current in the async thread by the {@link #observationTaskDecorator() task decorator},
+ * so observations of the transaction and the queries are its children.
+ * </p>
+ * Uses the {@link MeterRegistry} and {@link ObservationRegistry} beans, or the global registry
+ * and no observations when there are none.
+ */
+@Component
+class AsyncJPAStreamingMetrics {
+
+    static final String METRIC_PREFIX = "asyncjpastreaming.";
+
+    private static final String OBSERVATION_NAME = METRIC_PREFIX + "stream";
+
+    /**
+     * Number of entities after which the rows counter is updated by the async thread
+     */
+    private static final int ROWS_INTERVAL = 1000;
+
+    private final MeterRegistry meterRegistry;
+
+    private final ObservationRegistry observationRegistry;
+
+    private final Map<String, MethodMeters> methodMeters = new ConcurrentHashMap<>();
+
+
+    AsyncJPAStreamingMetrics(ObjectProvider<MeterRegistry> meterRegistry,
+                             ObjectProvider<ObservationRegistry> observationRegistry) {
+        this.meterRegistry = meterRegistry.getIfUnique(() -> Metrics.globalRegistry);
+        this.observationRegistry = observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP);
+    }
+
+    /**
+     * Starts recording a stream of the given method, the returned sink must be passed to the async thread.
+     * Recording ends when the async thread closes the sink or an error is added.
+     */
+    <T> StreamRecorder<T> record(AsyncJPAStreamingSink<T> sink, String method) {
+        return new StreamRecorder<>(sink, methodMeters.computeIfAbsent(method, MethodMeters::new));
+    }
+
+    /**
+     * Publishes the fetch size learned for the query of the given method.
+     */
+    void fetchSize(String method, AtomicInteger fetchSize) {
+        Gauge.builder(METRIC_PREFIX + "fetch.size", fetchSize, AtomicInteger::get)
+             .description("Fetch size learned for the query")
+             .tags(Tags.of("method", method))
+             .register(meterRegistry);
+    }
+
+    /**
+     * Makes the current observation of the submitting thread the current observation of the async thread.
+     */
+    TaskDecorator observationTaskDecorator() {
+        return runnable -> {
+            // calling thread: the stream observation opened by the recorder
+            Observation observation = observationRegistry.getCurrentObservation();
+            if (observation == null) {
+                return runnable;
+            }
+            return () -> {
+                // async thread
+                try (Observation.Scope scope = observation.openScope()) {
+                    runnable.run();
+                }
+            };
+        };
+    }
+
+    private final class MethodMeters {
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final Set<StreamRecorder<?>> running = ConcurrentHashMap.newKeySet();
+
+        private final Timer first;
+
+        private final Counter rows;
+
+        private final String method;
+
+        private final Tags tags;
+
+        // wait times of finished streams
+        private long producerWaitNanos;
+        private long consumerWaitNanos;
+
+        private MethodMeters(String method) {
+            this.method = method;
+            this.tags = Tags.of("method", method);
+            first = Timer.builder(METRIC_PREFIX + "stream.first")
+                         .description("Time until the first entity was fetched")
+                         .tags(tags)
+                         .register(meterRegistry);
+            rows = Counter.builder(METRIC_PREFIX + "stream.rows")
+                          .description("Entities fetched")
+                          .tags(tags)
+                          .register(meterRegistry);
+            Gauge.builder(METRIC_PREFIX + "streams.active", active, AtomicInteger::get)
+                 .description("Streams with a running async thread")
+                 .tags(tags)
+                 .register(meterRegistry);
+            Gauge.builder(METRIC_PREFIX + "buffer.size", this, meters -> meters.running.stream().mapToInt(recorder -> recorder.sink.size()).sum())
+                 .description("Entities waiting for the consumers")
+                 .tags(tags)
+                 .register(meterRegistry);
+            FunctionCounter.builder(METRIC_PREFIX + "producer.blocked", this, meters -> meters.waitSeconds(AsyncJPAStreamingSink::getProducerWaitNanos, true))
+                           .description("Time the async threads waited for the consumers")
+                           .baseUnit("seconds")
+                           .tags(tags)
+                           .register(meterRegistry);
+            FunctionCounter.builder(METRIC_PREFIX + "consumer.starved", this, meters -> meters.waitSeconds(AsyncJPAStreamingSink::getConsumerWaitNanos, false))
+                           .description("Time the consumers waited for the async threads")
+                           .baseUnit("seconds")
+                           .tags(tags)
+                           .register(meterRegistry);
+        }
+
+        private synchronized double waitSeconds(ToLongFunction<AsyncJPAStreamingSink<?>> waitNanos, boolean producer) {
+            long nanos = producer ? producerWaitNanos : consumerWaitNanos;
+            for (StreamRecorder<?> recorder : running) {
+                nanos += waitNanos.applyAsLong(recorder.sink);
+            }
+            return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+
+        private synchronized void finished(StreamRecorder<?> recorder) {
+            // synchronized with reading the wait times, so they are not counted twice or not at all
+            running.remove(recorder);
+            producerWaitNanos += recorder.sink.getProducerWaitNanos();
+            consumerWaitNanos += recorder.sink.getConsumerWaitNanos();
+            active.decrementAndGet();
+        }
+
+        private Timer duration(String outcome) {
+            return Timer.builder(METRIC_PREFIX + "stream.duration")
+                        .description("Time until the async thread finished")
+                        .tags(tags.and("outcome", outcome))
+                        .register(meterRegistry);
+        }
+
+    }
+
+    /**
+     * Sink recording the stream, delegates to the sink of the consumer.
+     */
+    final class StreamRecorder<T> implements AsyncJPAStreamingSink<T> {
+
+        private final AsyncJPAStreamingSink<T> sink;
+
+        private final MethodMeters meters;
+
+        private final Observation observation;
+
+        private final long start = System.nanoTime();
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private long rows;
+
+        private boolean cancelled;
+
+        private StreamRecorder(AsyncJPAStreamingSink<T> sink, MethodMeters meters) {
+            this.sink = sink;
+            this.meters = meters;
+            this.observation = Observation.createNotStarted(OBSERVATION_NAME, observationRegistry)
+                                          .lowCardinalityKeyValue("method", meters.method)
+                                          .start();
+            meters.active.incrementAndGet();
+            meters.running.add(this);
+        }
+
+        /**
+         * Opens the observation in the calling thread, so it is propagated to the async thread when submitting the task.
+         */
+        Observation.Scope openScope() {
+            return observation.openScope();
+        }
+
+        @Override
+        public void offer(T item) {
+            if (rows == 0) {
+                meters.first.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            try {
+                sink.offer(item);
+            } catch (ClosedException e) {
+                cancelled = true;
+                throw e;
+            }
+            if (++rows % ROWS_INTERVAL == 0) {
+                meters.rows.increment(ROWS_INTERVAL);
+            }
+        }
+
+        @Override
+        public void addError(Throwable throwable) {
+            sink.addError(throwable);
+            finish(throwable);
+        }
+
+        @Override
+        public void close() {
+            sink.close();
+            finish(null);
+        }
+
+        @Override
+        public void abort(Throwable throwable) {
+            sink.abort(throwable); // finished by the producer
+        }
+
+        @Override
+        public void cancelQueryWith(Runnable cancelQuery) {
+            sink.cancelQueryWith(cancelQuery);
+        }
+
+        @Override
+        public int size() {
+            return sink.size();
+        }
+
+        @Override
+        public long getProducerWaitNanos() {
+            return sink.getProducerWaitNanos();
+        }
+
+        @Override
+        public long getConsumerWaitNanos() {
+            return sink.getConsumerWaitNanos();
+        }
+
+        private void finish(Throwable throwable) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            meters.rows.increment(rows % ROWS_INTERVAL);
+            String outcome = throwable != null ? "error" : cancelled ? "cancelled" : "completed";
+            meters.duration(outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            meters.finished(this); // after the duration, so an inactive stream is always counted
+            if (throwable != null) {
+                observation.error(throwable);
+            }
+            observation.lowCardinalityKeyValue("outcome", outcome)
+                       .highCardinalityKeyValue("rows", Long.toString(rows))
+                       .stop();
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * How a stream is executed when it is requested by the async thread of another stream, e.g. an
+ * {@link AsyncJPAStreaming} method called by another one.
+ *
+ * @see AsyncJPAStreaming#nested()
+ */
+public enum AsyncJPAStreamingNested {
+
+    /**
+     * Execute the nested stream directly in the async thread of the outer stream, within its transaction and connection
+     */
+    JOIN,
+
+    /**
+     * Execute the nested stream in its own async thread, transaction and connection.
+     * The outer stream occupies a thread and a connection while it waits for the nested one, so make sure the
+     * {@code asyncJPAStreamingTaskExecutor} and the connection pool can run both, otherwise they wait for each other.
+     */
+    NEW
+
+}
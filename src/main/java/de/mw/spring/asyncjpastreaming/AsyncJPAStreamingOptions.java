@@ -0,0 +1,159 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Options for a single stream executed by {@link AsyncJPAStreamingSupport}.
+ * The {@link AsyncJPAStreaming} aspect builds them from the annotation attributes.
+ *
+ * @see AsyncJPAStreaming
+ */
+@Value
+@Builder(toBuilder = true)
+public class AsyncJPAStreamingOptions {
+
+    /**
+     * Name of the stream used to tag metrics and observations, the aspect uses the annotated method,
+     * e.g. {@code PersonRepository.streamAll}.
+     */
+    @Builder.Default
+    String name = "streamAsync";
+
+    /**
+     * Use a readonly transaction, default true.
+     */
+    @Builder.Default
+    boolean readonly = true;
+
+    /**
+     * @see AsyncJPAStreaming#clearEntityManager()
+     */
+    boolean clearEntityManager;
+
+    /**
+     * @see AsyncJPAStreaming#persistenceContext()
+     */
+    @Builder.Default
+    AsyncJPAStreamingPersistenceContext persistenceContext = AsyncJPAStreamingPersistenceContext.KEEP;
+
+    /**
+     * @see AsyncJPAStreaming#clearInterval()
+     */
+    @Builder.Default
+    int clearInterval = 1000;
+
+    /**
+     * @see AsyncJPAStreaming#bufferCapacity()
+     */
+    @Builder.Default
+    int bufferCapacity = Integer.MAX_VALUE;
+
+    /**
+     * @see AsyncJPAStreaming#chunkSize()
+     */
+    @Builder.Default
+    int chunkSize = 1;
+
+    /**
+     * @see AsyncJPAStreaming#adaptiveBuffer()
+     */
+    boolean adaptiveBuffer;
+
+    /**
+     * @see AsyncJPAStreaming#partitions()
+     */
+    @Builder.Default
+    int partitions = 1;
+
+    /**
+     * @see AsyncJPAStreaming#orderedMerge()
+     */
+    boolean orderedMerge;
+
+    /**
+     * @see AsyncJPAStreaming#nested()
+     */
+    @Builder.Default
+    AsyncJPAStreamingNested nested = AsyncJPAStreamingNested.JOIN;
+
+    /**
+     * @see AsyncJPAStreaming#spillBytes()
+     */
+    int spillBytes;
+
+    /**
+     * Serializer of spilled entities, {@code null} for the {@link AsyncJPAStreamingSerializer} bean or Java serialization.
+     */
+    AsyncJPAStreamingSerializer serializer;
+
+    /**
+     * Streams with equal sharing keys running at the same time share one async thread, {@code null} for an unshared
+     * stream. The aspect uses the annotated method and its arguments for {@link AsyncJPAStreaming#shared()} methods.
+     */
+    Object sharingKey;
+
+    /**
+     * @see AsyncJPAStreaming#replayCapacity()
+     */
+    @Builder.Default
+    int replayCapacity = 1000;
+
+    /**
+     * @see AsyncJPAStreaming#timeoutMillis()
+     */
+    long timeoutMillis;
+
+    /**
+     * @see AsyncJPAStreaming#idleTimeoutMillis()
+     */
+    long idleTimeoutMillis;
+
+    /**
+     * Group of the stream for the fairness weights of the {@link AsyncJPAStreamingAdmission admission control},
+     * e.g. the tenant, {@code null} for the {@link #getName() name}.
+     *
+     * @see AsyncJPAStreaming#admissionGroup()
+     */
+    String admissionGroup;
+
+    /**
+     * Number of entities mapped together by a worker of {@link AsyncJPAStreamingSupport#streamAsyncMapped mapped streams},
+     * default 100.
+     */
+    @Builder.Default
+    int mappingBatchSize = 100;
+
+    /**
+     * @see AsyncJPAStreaming#prefetch()
+     */
+    @Builder.Default
+    List<String> prefetch = List.of();
+
+    /**
+     * @see AsyncJPAStreaming#prefetchBatchSize()
+     */
+    @Builder.Default
+    int prefetchBatchSize = 100;
+
+
+    /**
+     * Group of the stream for the admission control, the {@link #getName() name} if none is set.
+     */
+    public String getAdmissionGroup() {
+        return admissionGroup != null ? admissionGroup : name;
+    }
+
+    /**
+     * Persistence context handling, {@link #isClearEntityManager()} is a shortcut for {@link AsyncJPAStreamingPersistenceContext#CLEAR}.
+     */
+    public AsyncJPAStreamingPersistenceContext getPersistenceContextStrategy() {
+        if (clearEntityManager && persistenceContext == AsyncJPAStreamingPersistenceContext.KEEP) {
+            return AsyncJPAStreamingPersistenceContext.CLEAR;
+        }
+        return persistenceContext;
+    }
+
+}
@@ -0,0 +1,35 @@
+package de.mw.spring.asyncjpastreaming;
+
+import jakarta.persistence.EntityManager;
+
+/**
+ * How the persistence context of the async thread is kept small while streaming.
+ * <p>
+ * Otherwise Hibernate keeps ALL streamed entities and their snapshots in the session until the transaction ends,
+ * this can require a lot of memory even if the buffer capacity is limited.
+ * To avoid the persistence context completely use
+ * {@link AsyncJPAStreamingSupport#streamAsyncStateless(java.util.function.Function, AsyncJPAStreamingOptions)}.
+ * </p>
+ *
+ * @see AsyncJPAStreaming#persistenceContext()
+ */
+public enum AsyncJPAStreamingPersistenceContext {
+
+    /**
+     * Keep all entities in the persistence context
+     */
+    KEEP,
+
+    /**
+     * {@link EntityManager#clear() Clear} the persistence context every {@link AsyncJPAStreaming#clearInterval()} entities
+     */
+    CLEAR,
+
+    /**
+     * {@link EntityManager#detach(Object) Detach} each entity after it was handed over.
+     * Requires the stream to return the entities, for other elements (e.g. mapped DTOs) the persistence context
+     * is cleared like {@link #CLEAR}.
+     */
+    DETACH
+
+}
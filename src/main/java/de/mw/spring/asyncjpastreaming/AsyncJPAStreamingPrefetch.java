@@ -0,0 +1,117 @@
+package de.mw.spring.asyncjpastreaming;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceUnitUtil;
+import jakarta.persistence.metamodel.EntityType;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Initializes the named associations of streamed entities batch by batch, see {@link AsyncJPAStreaming#prefetch()}.
+ * <p>
+ * The entities are read ahead from the source stream in batches. For every association the entities of a batch
+ * whose association is not initialized yet are loaded again with one query
+ * {@code select e from Entity e left join fetch e.association where e in :entities}. The query returns the managed
+ * instances of the persistence context, so it only initializes their association. Then the batch is handed on.
+ * </p>
+ * Items which are no entities, e.g. DTOs, are handed on unchanged.
+ */
+@Slf4j
+final class AsyncJPAStreamingPrefetch {
+
+    private final EntityManager entityManager;
+
+    private final List<String> associations;
+
+    private final int batchSize;
+
+    private final Map<Class<?>, Optional<EntityType<?>>> entityTypes = new LinkedHashMap<>();
+
+
+    private AsyncJPAStreamingPrefetch(EntityManager entityManager, List<String> associations, int batchSize) {
+        this.entityManager = entityManager;
+        this.associations = associations;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Returns the entities of the given stream with the associations initialized, closing it closes the given stream.
+     *
+     * @param entityManager entity manager of the current transaction, which streams the entities
+     * @param associations names of the associations of the entities
+     * @param batchSize number of entities per prefetch query
+     */
+    static <T> Stream<T> prefetch(Stream<T> entities, EntityManager entityManager, List<String> associations, int batchSize) {
+        AsyncJPAStreamingPrefetch prefetch = new AsyncJPAStreamingPrefetch(entityManager, associations, batchSize);
+        Iterator<T> source = entities.iterator();
+        Spliterator<List<T>> batches = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super List<T>> action) {
+                if (!source.hasNext()) {
+                    return false;
+                }
+                List<T> batch = new ArrayList<>(prefetch.batchSize);
+                while (batch.size() < prefetch.batchSize && source.hasNext()) {
+                    batch.add(source.next());
+                }
+                prefetch.initialize(batch);
+                action.accept(batch);
+                return true;
+            }
+        };
+        return StreamSupport.stream(batches, false)
+                            .flatMap(List::stream)
+                            .onClose(entities::close);
+    }
+
+    private void initialize(List<?> batch) {
+        Map<EntityType<?>, List<Object>> byType = new LinkedHashMap<>();
+        for (Object item : batch) {
+            EntityType<?> type = entityType(item);
+            if (type != null) {
+                byType.computeIfAbsent(type, key -> new ArrayList<>()).add(item);
+            }
+        }
+        PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        byType.forEach((type, entities) -> {
+            for (String association : associations) {
+                List<Object> uninitialized = entities.stream()
+                                                     .filter(entity -> !persistenceUnitUtil.isLoaded(entity, association))
+                                                     .toList();
+                if (!uninitialized.isEmpty()) {
+                    log.trace("Prefetching {}.{} of {} entities", type.getName(), association, uninitialized.size());
+                    entityManager.createQuery("select e from " + type.getName() + " e left join fetch e." + association +
+                                              " where e in :entities")
+                                 .setParameter("entities", uninitialized)
+                                 .getResultList();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the entity type of the item, {@code null} if it is no entity.
+     */
+    private EntityType<?> entityType(Object item) {
+        return entityTypes.computeIfAbsent(Hibernate.getClass(item), type -> {
+            try {
+                return Optional.<EntityType<?>>of(entityManager.getMetamodel().entity(type));
+            } catch (IllegalArgumentException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+}
@@ -0,0 +1,409 @@
+package de.mw.spring.asyncjpastreaming;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Demand driven {@link Flow.Publisher} of an {@link AsyncJPAStreaming} stream.
+ * <p>
+ * Each subscription starts its own async transactional thread on the first request. The async thread hands over
+ * each entity directly to the subscriber and waits while there is no outstanding demand, so the subscriber's
+ * {@link Flow.Subscription#request(long)} determines how far the result set is read ahead. Cancelling the
+ * subscription stops the async thread at the next entity, which closes the cursor and ends the transaction.
+ * An async thread interrupted while waiting for demand ends the subscription with an error.
+ * </p>
+ */
+final class AsyncJPAStreamingPublisher<T> implements Flow.Publisher<T> {
+
+    private final Consumer<AsyncJPAStreamingSink<T>> producer;
+
+    private final Supplier<AsyncJPAStreamingQueryCancellation> queryCancellations;
+
+
+    /**
+     * Creates a publisher whose subscriptions cancel the registered query only once, without retries.
+     *
+     * @param producer starts the async thread streaming to the given sink
+     */
+    AsyncJPAStreamingPublisher(Consumer<AsyncJPAStreamingSink<T>> producer) {
+        this(producer, () -> new AsyncJPAStreamingQueryCancellation(null));
+    }
+
+    /**
+     * @param producer starts the async thread streaming to the given sink
+     * @param queryCancellations creates the query cancellation of every subscription
+     */
+    AsyncJPAStreamingPublisher(Consumer<AsyncJPAStreamingSink<T>> producer, Supplier<AsyncJPAStreamingQueryCancellation> queryCancellations) {
+        this.producer = producer;
+        this.queryCancellations = queryCancellations;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        subscriber.onSubscribe(new AsyncSubscription(subscriber));
+    }
+
+    /**
+     * Publisher emitting the stream in the thread requesting the entities, used when async streaming is not possible.
+     */
+    static <T> Flow.Publisher<T> synchronous(Supplier<Stream<T>> streamSupplier) {
+        return subscriber -> {
+            Objects.requireNonNull(subscriber);
+            subscriber.onSubscribe(new SynchronousSubscription<>(subscriber, streamSupplier));
+        };
+    }
+
+    /**
+     * Adapts the publisher returned by an {@link AsyncJPAStreaming} method to a stream, which requests
+     * one entity after the other from the publisher. Closing the stream cancels the subscription.
+     */
+    static <T> Stream<T> toStream(Flow.Publisher<T> source) {
+        SubscriberSpliterator<T> spliterator = new SubscriberSpliterator<>();
+        source.subscribe(spliterator);
+        return StreamSupport.stream(spliterator, false)
+                            .onClose(spliterator::cancel);
+    }
+
+    private static IllegalArgumentException nonPositiveRequest(long n) {
+        return new IllegalArgumentException("§3.9 violated: request must be positive, but was " + n);
+    }
+
+    private final class AsyncSubscription implements Flow.Subscription, AsyncJPAStreamingSink<T> {
+
+        private final Flow.Subscriber<? super T> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private final AtomicBoolean terminated = new AtomicBoolean();
+
+        private volatile boolean cancelled;
+
+        /**
+         * Error signalled instead of completing, e.g. of a non-positive request or a timeout
+         */
+        private volatile Throwable cancelError;
+
+        private volatile Thread producerWaiter;
+
+        private volatile long producerWaitNanos;
+
+        private final AsyncJPAStreamingQueryCancellation queryCancellation = queryCancellations.get();
+
+        private AsyncSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        // ---- subscriber side ----
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelError = nonPositiveRequest(n);
+                cancelled = true;
+                if (started.compareAndSet(false, true)) {
+                    close(); // no async thread, signal the error directly
+                }
+                LockSupport.unpark(producerWaiter);
+                return;
+            }
+
+            demand.getAndAccumulate(n, (current, requested) -> current + requested < 0 ? Long.MAX_VALUE : current + requested);
+            if (started.compareAndSet(false, true)) {
+                try {
+                    producer.accept(this);
+                } catch (RuntimeException e) {
+                    addError(e); // e.g. rejected by the executor
+                }
+            } else {
+                LockSupport.unpark(producerWaiter);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            LockSupport.unpark(producerWaiter);
+            queryCancellation.cancel();
+        }
+
+        // ---- producer side ----
+
+        @Override
+        public void abort(Throwable throwable) {
+            cancelError = throwable; // signalled by the producer when it stops
+            cancelled = true;
+            LockSupport.unpark(producerWaiter);
+            queryCancellation.cancel();
+        }
+
+        @Override
+        public void cancelQueryWith(Runnable cancelQuery) {
+            queryCancellation.register(cancelQuery);
+        }
+
+        @Override
+        public void offer(T item) {
+            if (demand.get() == 0 && !cancelled) {
+                long start = System.nanoTime();
+                while (demand.get() == 0 && !cancelled) {
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt(); // park would return right away
+                        abort(new AsyncJPAStreamingException("Interrupted while waiting for demand"));
+                        break;
+                    }
+                    producerWaiter = Thread.currentThread();
+                    if (demand.get() == 0 && !cancelled) {
+                        LockSupport.park(this);
+                    }
+                    producerWaiter = null;
+                }
+                producerWaitNanos += System.nanoTime() - start; // single writer
+            }
+            if (cancelled) {
+                throw new ClosedException();
+            }
+
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            subscriber.onNext(item);
+        }
+
+        @Override
+        public void addError(Throwable throwable) {
+            if (terminated.compareAndSet(false, true)) {
+                if (cancelError != null) {
+                    subscriber.onError(cancelError); // e.g. the cancelled query failed
+                } else if (!cancelled) {
+                    subscriber.onError(throwable);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (terminated.compareAndSet(false, true)) {
+                if (cancelError != null) {
+                    subscriber.onError(cancelError);
+                } else if (!cancelled) {
+                    subscriber.onComplete();
+                }
+            }
+        }
+
+        @Override
+        public long getProducerWaitNanos() {
+            return producerWaitNanos;
+        }
+
+    }
+
+    private static final class SynchronousSubscription<T> implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> subscriber;
+
+        private final Supplier<Stream<T>> streamSupplier;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private final AtomicInteger work = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable requestError;
+
+        private Stream<T> stream;
+
+        private Iterator<T> iterator;
+
+        private boolean terminated;
+
+        private SynchronousSubscription(Flow.Subscriber<? super T> subscriber, Supplier<Stream<T>> streamSupplier) {
+            this.subscriber = subscriber;
+            this.streamSupplier = streamSupplier;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                requestError = nonPositiveRequest(n);
+                cancelled = true;
+                drain();
+                return;
+            }
+            demand.getAndAccumulate(n, (current, requested) -> current + requested < 0 ? Long.MAX_VALUE : current + requested);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /**
+         * Emits the requested entities, requests from within onNext are handled by the outer call
+         */
+        private void drain() {
+            if (work.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                try {
+                    while (!terminated && !cancelled && demand.get() > 0) {
+                        if (iterator == null) {
+                            stream = streamSupplier.get();
+                            iterator = stream.iterator();
+                        }
+                        if (!iterator.hasNext()) {
+                            terminate(null);
+                            return;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(iterator.next());
+                    }
+                    if (cancelled && !terminated) {
+                        terminate(requestError);
+                    }
+                } catch (RuntimeException e) {
+                    terminate(e);
+                    return;
+                }
+            } while (work.decrementAndGet() != 0);
+        }
+
+        private void terminate(Throwable throwable) {
+            terminated = true;
+            if (stream != null) {
+                stream.close();
+            }
+            if (throwable != null) {
+                subscriber.onError(throwable);
+            } else if (!cancelled) {
+                subscriber.onComplete();
+            }
+        }
+
+    }
+
+    private static final class SubscriberSpliterator<T> implements Flow.Subscriber<T>, Spliterator<T> {
+
+        private volatile Flow.Subscription subscription;
+
+        private volatile T next;
+
+        private volatile boolean done;
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable error;
+
+        private volatile Thread waiter;
+
+        private boolean requested;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled) {
+                subscription.cancel();
+            }
+            LockSupport.unpark(waiter);
+        }
+
+        @Override
+        public void onNext(T item) {
+            next = item;
+            LockSupport.unpark(waiter);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done = true;
+            LockSupport.unpark(waiter);
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            LockSupport.unpark(waiter);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (true) {
+                T item = next;
+                if (item != null) {
+                    next = null;
+                    requested = false;
+                    action.accept(item);
+                    return true;
+                }
+                if (done) {
+                    if (next != null) {
+                        continue; // onNext before onComplete
+                    }
+                    if (error != null) {
+                        throw AsyncJPAStreamingException.propagate(error);
+                    }
+                    return false;
+                }
+                if (!requested && subscription != null) {
+                    requested = true;
+                    subscription.request(1); // synchronous publishers emit within the request call
+                    continue;
+                }
+
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt(); // park would return right away
+                    cancel();
+                    throw new AsyncJPAStreamingException("Interrupted while waiting for the next entity");
+                }
+                waiter = Thread.currentThread();
+                if (next == null && !done && (requested || subscription == null)) {
+                    LockSupport.park(this);
+                }
+                waiter = null;
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            Flow.Subscription current = subscription;
+            if (current != null && !done) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancels the running query of a stream's async thread, e.g. {@link org.hibernate.Session#cancelQuery()},
+ * so its connection is returned without waiting for the query to finish.
+ * <p>
+ * The async thread registers the query while it is running, the consuming side cancels it when closing the stream.
+ * A registration after cancelling fails, so a query is not started for a closed stream. As the stream may be closed
+ * after the registration but before the statement was executed, the query is cancelled again until the async
+ * thread ended it. The registered cancellation must only hit a statement while it is executing, see
+ * {@link AsyncJPAStreamingStatementExecution}, so a retry does not cancel a statement which already finished.
+ * </p>
+ * <p>
+ * There is one cancellation per stream, held by the sink the consumer reads from. The sinks wrapping it, e.g. for
+ * timeouts or the shutdown, cancel the query by aborting it. The retries run on the scheduler of
+ * {@link AsyncJPAStreamingTimeouts}, which is shut down with the application context.
+ * </p>
+ */
+@Slf4j
+final class AsyncJPAStreamingQueryCancellation {
+
+    private static final long RETRY_MILLIS = 100;
+
+    private final ScheduledExecutorService retries;
+
+    private Runnable cancelQuery;
+
+    private boolean cancelled;
+
+    private ScheduledFuture<?> retry;
+
+
+    /**
+     * @param retries scheduler of the retries, {@code null} to cancel the query only once, e.g. for a sink which is
+     * not created by {@link AsyncJPAStreamingSupport}
+     */
+    AsyncJPAStreamingQueryCancellation(ScheduledExecutorService retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @param cancelQuery cancels the running query, {@code null} when the query ended
+     * @throws AsyncJPAStreamingSink.ClosedException when the stream was already cancelled
+     */
+    synchronized void register(Runnable cancelQuery) {
+        if (cancelled && cancelQuery != null) {
+            throw new AsyncJPAStreamingSink.ClosedException();
+        }
+        this.cancelQuery = cancelQuery;
+        if (cancelQuery == null && retry != null) {
+            retry.cancel(false);
+        }
+    }
+
+    synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (cancelQuery != null) {
+            cancelQuery();
+            scheduleRetries();
+        }
+    }
+
+    private void scheduleRetries() {
+        if (retries == null) {
+            return;
+        }
+        try {
+            retry = retries.scheduleWithFixedDelay(this::retry, RETRY_MILLIS, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Cannot retry cancelling the running query, application is shutting down");
+        }
+    }
+
+    private synchronized void retry() {
+        if (cancelQuery != null) {
+            cancelQuery();
+        }
+    }
+
+    private void cancelQuery() {
+        try {
+            cancelQuery.run();
+            log.debug("Cancelled running query of closed stream");
+        } catch (RuntimeException e) {
+            log.debug("Cannot cancel running query: {}", e.toString()); // e.g. the query just ended
+        }
+    }
+
+}
@@ -0,0 +1,15 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * Thrown in the calling thread when a stream is not admitted within the maximum wait of the admission control,
+ * as all connections available to streams are in use.
+ *
+ * @see AsyncJPAStreamingAdmission
+ */
+public class AsyncJPAStreamingRejectedException extends AsyncJPAStreamingException {
+
+    public AsyncJPAStreamingRejectedException(String message) {
+        super(message);
+    }
+
+}
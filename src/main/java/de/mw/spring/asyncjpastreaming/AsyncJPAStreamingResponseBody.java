@@ -0,0 +1,124 @@
+package de.mw.spring.asyncjpastreaming;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Writes a stream of an {@link AsyncJPAStreaming} method directly to the HTTP response as JSON array or NDJSON.
+ * <p>
+ * All elements are serialized with a single {@link JsonGenerator} and the response is flushed every
+ * {@link #flushInterval(int) flush interval} elements instead of after each element. Returned from a controller,
+ * Spring MVC writes the response in async servlet mode on its async task executor, so the request thread is released
+ * for the whole transfer (mind {@code spring.mvc.async.request-timeout} for long transfers):
+ * <pre>
+ * &#64;GetMapping("/persons")
+ * public ResponseEntity&lt;StreamingResponseBody&gt; persons() {
+ *     return AsyncJPAStreamingResponseBody.ndjson(personService.streamAllPersons(), objectMapper).toResponseEntity();
+ * }
+ * </pre>
+ * The stream is always closed after writing, also when the client disconnected, which ends the async thread and its
+ * transaction. An error while streaming truncates the response, as the status code was already sent.
+ * </p>
+ * Requires spring-webmvc and jackson-databind.
+ *
+ * @param <T> element type
+ */
+@Slf4j
+public final class AsyncJPAStreamingResponseBody<T> implements StreamingResponseBody {
+
+    private static final int DEFAULT_FLUSH_INTERVAL = 100;
+
+    private final Stream<T> stream;
+
+    private final ObjectWriter writer;
+
+    private final boolean ndjson;
+
+    private int flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+
+    private AsyncJPAStreamingResponseBody(Stream<T> stream, ObjectMapper objectMapper, boolean ndjson) {
+        this.stream = stream;
+        this.writer = objectMapper.writer()
+                                  .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE); // flushed in batches
+        this.ndjson = ndjson;
+    }
+
+    /**
+     * Writes the stream as JSON array, {@code [{...},{...}]}
+     */
+    public static <T> AsyncJPAStreamingResponseBody<T> jsonArray(Stream<T> stream, ObjectMapper objectMapper) {
+        return new AsyncJPAStreamingResponseBody<>(stream, objectMapper, false);
+    }
+
+    /**
+     * Writes the stream as newline delimited JSON, one element per line.
+     */
+    public static <T> AsyncJPAStreamingResponseBody<T> ndjson(Stream<T> stream, ObjectMapper objectMapper) {
+        return new AsyncJPAStreamingResponseBody<>(stream, objectMapper, true);
+    }
+
+    /**
+     * Flushes the response after the given number of elements, default 100.
+     * Smaller intervals reduce the latency of single elements, larger ones the number of network packets.
+     */
+    public AsyncJPAStreamingResponseBody<T> flushInterval(int flushInterval) {
+        this.flushInterval = Math.max(flushInterval, 1);
+        return this;
+    }
+
+    public MediaType getContentType() {
+        return ndjson ? MediaType.APPLICATION_NDJSON : MediaType.APPLICATION_JSON;
+    }
+
+    /**
+     * Response with status 200 and the content type of the format.
+     */
+    public ResponseEntity<StreamingResponseBody> toResponseEntity() {
+        return ResponseEntity.ok()
+                             .contentType(getContentType())
+                             .body(this);
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        long count = 0;
+        try (Stream<T> elements = stream; // closing cancels the async thread, e.g. when the client disconnected
+             JsonGenerator generator = writer.createGenerator(outputStream)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET); // the response stream is closed by the container
+            generator.setRootValueSeparator(null); // NDJSON lines are separated below
+
+            if (!ndjson) {
+                generator.writeStartArray();
+            }
+            Iterator<T> iterator = elements.iterator();
+            while (iterator.hasNext()) {
+                writer.writeValue(generator, iterator.next());
+                if (ndjson) {
+                    generator.writeRaw('\n');
+                }
+                if (++count % flushInterval == 0) {
+                    generator.flush();
+                }
+            }
+            if (!ndjson) {
+                generator.writeEndArray();
+            }
+        } catch (IOException e) {
+            log.debug("Writing response stopped after {} elements: {}", count, e.getMessage());
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.util.ClassUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Serializes the entities of a stream spilled to disk, see {@link AsyncJPAStreaming#spillBytes()}.
+ * <p>
+ * A bean of this type replaces the default {@link #java() Java serialization} for all streams, e.g. with a faster
+ * serializer or one for entities not implementing {@link java.io.Serializable}. Spilled entities are read back as
+ * detached copies, so all data needed by the consumer has to be loaded before.
+ * </p>
+ */
+public interface AsyncJPAStreamingSerializer {
+
+    byte[] serialize(Object item) throws IOException;
+
+    Object deserialize(byte[] bytes) throws IOException;
+
+    /**
+     * Java serialization, requires {@link java.io.Serializable} entities.
+     */
+    static AsyncJPAStreamingSerializer java() {
+        return new AsyncJPAStreamingSerializer() {
+
+            @Override
+            public byte[] serialize(Object item) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(item);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            public Object deserialize(byte[] bytes) throws IOException {
+                try (ObjectInputStream in = new ConfigurableObjectInputStream(new ByteArrayInputStream(bytes), ClassUtils.getDefaultClassLoader())) {
+                    return in.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Failed to deserialize spilled entity", e);
+                }
+            }
+
+        };
+    }
+
+}
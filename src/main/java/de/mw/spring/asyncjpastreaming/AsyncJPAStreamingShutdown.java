@@ -0,0 +1,221 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.context.WebServerGracefulShutdownLifecycle;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the running streams when the application shuts down.
+ * <p>
+ * When the application context is closed, new streams are rejected with an {@link AsyncJPAStreamingRejectedException}.
+ * The async threads of the running streams get {@code app.configuration.asyncjpastreaming.shutdown.drainMillis}
+ * (default 10 s) to finish. Then the remaining streams are aborted: their queries are cancelled, so their connections
+ * are returned before the data source is closed, an async thread waiting for a consumer which stopped reading is woken,
+ * and their consumers receive an {@link AsyncJPAStreamingShutdownException} right away.
+ * The shutdown waits up to {@code app.configuration.asyncjpastreaming.shutdown.terminationMillis} (default 5 s)
+ * for the cancelled streams to end, the {@code asyncJPAStreamingTaskExecutor} waits as long for its threads.
+ * </p>
+ * <p>
+ * The streams are drained in the phase after the graceful shutdown of the web server, so no new requests start streams
+ * meanwhile and the requests still running got their time to finish, but before the web server is stopped.
+ * </p>
+ */
+@Slf4j
+@Component
+class AsyncJPAStreamingShutdown implements SmartLifecycle {
+
+    private static final String CANCELLED = "Stream cancelled, application is shutting down";
+
+    private final long drainMillis;
+
+    private final long terminationMillis;
+
+    // guarded by itself
+    private final Set<InFlight<?>> inFlight = new HashSet<>();
+
+    private volatile boolean running;
+
+    private volatile boolean stopping;
+
+
+    AsyncJPAStreamingShutdown(@Value("${app.configuration.asyncjpastreaming.shutdown.drainMillis:10000}") long drainMillis,
+                              @Value("${app.configuration.asyncjpastreaming.shutdown.terminationMillis:5000}") long terminationMillis) {
+        this.drainMillis = drainMillis;
+        this.terminationMillis = terminationMillis;
+    }
+
+    /**
+     * Returns a sink tracking the async thread of a stream until it {@link InFlight#ended() ended}.
+     *
+     * @throws AsyncJPAStreamingRejectedException when the application is shutting down
+     */
+    <T> InFlight<T> track(AsyncJPAStreamingSink<T> sink) {
+        InFlight<T> stream = new InFlight<>(sink);
+        synchronized (inFlight) {
+            if (stopping) {
+                throw new AsyncJPAStreamingRejectedException("Stream not started, application is shutting down");
+            }
+            inFlight.add(stream);
+        }
+        return stream;
+    }
+
+    @Override
+    public void start() {
+        stopping = false;
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        List<InFlight<?>> remaining;
+        synchronized (inFlight) {
+            stopping = true;
+            log.debug("Draining {} running streams for up to {} ms", inFlight.size(), drainMillis);
+            remaining = awaitInFlight(drainMillis);
+        }
+        if (!remaining.isEmpty()) {
+            log.warn("Cancelling {} streams still running after {} ms", remaining.size(), drainMillis);
+            remaining.forEach(InFlight::cancel);
+            synchronized (inFlight) {
+                remaining = awaitInFlight(terminationMillis);
+            }
+            if (!remaining.isEmpty()) {
+                log.warn("{} cancelled streams did not end within {} ms", remaining.size(), terminationMillis);
+            }
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops after the graceful shutdown of the web server, which stops accepting requests first.
+     */
+    @Override
+    public int getPhase() {
+        return WebServerGracefulShutdownLifecycle.SMART_LIFECYCLE_PHASE - 1;
+    }
+
+    /**
+     * Waits until all streams ended or the wait time elapsed, must be called holding the lock.
+     *
+     * @return the streams still running
+     */
+    private List<InFlight<?>> awaitInFlight(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        try {
+            long remainingMillis;
+            while (!inFlight.isEmpty() && (remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                inFlight.wait(remainingMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // cancel the remaining streams right away
+        }
+        return new ArrayList<>(inFlight);
+    }
+
+    /**
+     * Sink of a running stream, fails the async thread on its next entity after it was cancelled by the shutdown.
+     * Cancelling aborts the underlying sink, which cancels the query, so an async thread waiting for capacity does not
+     * wait for its consumer.
+     */
+    final class InFlight<T> implements AsyncJPAStreamingSink<T> {
+
+        private final AsyncJPAStreamingSink<T> sink;
+
+        private volatile boolean cancelled;
+
+
+        private InFlight(AsyncJPAStreamingSink<T> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void offer(T item) {
+            checkCancelled();
+            sink.offer(item);
+        }
+
+        @Override
+        public void addError(Throwable throwable) {
+            if (cancelled && !(throwable instanceof AsyncJPAStreamingShutdownException)) {
+                sink.addError(new AsyncJPAStreamingShutdownException(CANCELLED, throwable)); // e.g. the cancelled query failed
+            } else {
+                sink.addError(throwable);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (cancelled) {
+                sink.addError(new AsyncJPAStreamingShutdownException(CANCELLED)); // the cancelled query may end without failure
+            } else {
+                sink.close();
+            }
+        }
+
+        @Override
+        public void abort(Throwable throwable) {
+            sink.abort(throwable);
+        }
+
+        @Override
+        public void cancelQueryWith(Runnable cancelQuery) {
+            if (cancelQuery != null) {
+                checkCancelled();
+            }
+            sink.cancelQueryWith(cancelQuery);
+        }
+
+        @Override
+        public int size() {
+            return sink.size();
+        }
+
+        @Override
+        public long getProducerWaitNanos() {
+            return sink.getProducerWaitNanos();
+        }
+
+        @Override
+        public long getConsumerWaitNanos() {
+            return sink.getConsumerWaitNanos();
+        }
+
+        /**
+         * Stops tracking the stream after its async thread ended, or it could not be started.
+         */
+        void ended() {
+            synchronized (inFlight) {
+                if (inFlight.remove(this)) {
+                    inFlight.notifyAll();
+                }
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            sink.abort(new AsyncJPAStreamingShutdownException(CANCELLED)); // cancels the query
+        }
+
+        private void checkCancelled() {
+            if (cancelled) {
+                throw new AsyncJPAStreamingShutdownException(CANCELLED);
+            }
+        }
+
+    }
+
+}
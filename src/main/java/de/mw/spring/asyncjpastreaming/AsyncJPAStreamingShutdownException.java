@@ -0,0 +1,19 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * Signals the consuming thread that a stream was cancelled as it did not end within the drain window of the
+ * application shutdown. The cause is the failure of the cancelled query, if any.
+ *
+ * @see AsyncJPAStreamingShutdown
+ */
+public class AsyncJPAStreamingShutdownException extends AsyncJPAStreamingException {
+
+    public AsyncJPAStreamingShutdownException(String message) {
+        super(message);
+    }
+
+    public AsyncJPAStreamingShutdownException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
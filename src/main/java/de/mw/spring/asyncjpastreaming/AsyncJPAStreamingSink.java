@@ -0,0 +1,74 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * Producing side of an {@link AsyncJPAStreaming} stream, fed by the async transactional thread.
+ */
+interface AsyncJPAStreamingSink<T> {
+
+    /**
+     * Hands over an entity to the consumer, waits while the consumer is not ready.
+     *
+     * @throws ClosedException when the consumer closed the stream
+     */
+    void offer(T item);
+
+    /**
+     * Signals the consumer that an error occurred. Has no effect when the sink is already closed.
+     */
+    void addError(Throwable throwable);
+
+    /**
+     * Signals the consumer that no more entities will follow.
+     */
+    void close();
+
+    /**
+     * Ends the stream from a third thread, e.g. on a timeout. The running query is cancelled, the producer stops
+     * with a {@link ClosedException}, also when it waits for the consumer, and the consumer receives the given error
+     * right away instead of the entities not consumed yet.
+     */
+    void abort(Throwable throwable);
+
+    /**
+     * Registers how the running query of the producer is cancelled when the consumer closes the stream,
+     * {@code null} when the query ended. Sinks wrapping another one delegate, so the query is registered once
+     * per stream with the sink the consumer reads from.
+     *
+     * @throws ClosedException when the consumer already closed the stream
+     */
+    default void cancelQueryWith(Runnable cancelQuery) {
+    }
+
+    /**
+     * Number of entities waiting for the consumer, for monitoring only.
+     */
+    default int size() {
+        return 0;
+    }
+
+    /**
+     * Accumulated time the producer waited for the consumer, for monitoring only.
+     */
+    default long getProducerWaitNanos() {
+        return 0;
+    }
+
+    /**
+     * Accumulated time the consumer waited for the producer, for monitoring only.
+     */
+    default long getConsumerWaitNanos() {
+        return 0;
+    }
+
+    /**
+     * Thrown in the producing thread when the consumer closed the stream.
+     */
+    final class ClosedException extends RuntimeException {
+
+        ClosedException() {
+            super("Stream was closed by the consumer", null, false, false);
+        }
+
+    }
+
+}
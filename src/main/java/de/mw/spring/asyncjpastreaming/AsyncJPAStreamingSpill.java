@@ -0,0 +1,371 @@
+package de.mw.spring.asyncjpastreaming;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Buffer of a stream which spills to a memory-mapped temp file when its in-memory buffer is full, see
+ * {@link AsyncJPAStreaming#spillBytes()}.
+ * <p>
+ * The entities are handed over through the in-memory buffer as long as it has capacity. When it is full the
+ * in-memory buffer is closed and all following entities are serialized into a ring of the given number of bytes
+ * in a temp file, so the async thread can finish its query and release the connection while the consumer is slow.
+ * The consumer reads the in-memory buffer first and then the spilled entities. The async thread only waits when
+ * the spill file is full.
+ * </p>
+ * <p>
+ * The temp file is deleted right after it was mapped, its pages are freed when the mapping is garbage collected.
+ * </p>
+ */
+@Slf4j
+final class AsyncJPAStreamingSpill<T> implements AsyncJPAStreamingSink<T>, Spliterator<T> {
+
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final AsyncJPAStreamingBuffer<T> buffer;
+
+    private final AsyncJPAStreamingSerializer serializer;
+
+    private final int spillBytes;
+
+    private final Path directory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition spilled = lock.newCondition();
+
+    private final Condition read = lock.newCondition();
+
+    // shared state, guarded by lock
+    private ByteBuffer ring;
+    private long writePosition;
+    private long readPosition;
+    private long spilledCount;
+    private long readCount;
+    private long producerWaitNanos;
+    private boolean closed;
+    private Throwable error;
+
+    private volatile boolean spilling;
+    private volatile boolean cancelled;
+    private volatile Throwable aborted;
+
+    // producer state
+    private boolean spillUnavailable;
+
+    // consumer state
+    private boolean bufferDrained;
+
+
+    /**
+     * @param buffer in-memory buffer used until it is full
+     * @param serializer serializer of the spilled entities
+     * @param spillBytes size of the spill file
+     * @param directory directory of the spill file
+     */
+    AsyncJPAStreamingSpill(AsyncJPAStreamingBuffer<T> buffer, AsyncJPAStreamingSerializer serializer, int spillBytes, Path directory) {
+        this.buffer = buffer;
+        this.serializer = serializer;
+        this.spillBytes = spillBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the consuming side as stream. Closing the stream cancels the producer.
+     */
+    Stream<T> stream() {
+        return StreamSupport.stream(this, false)
+                            .onClose(this::cancel);
+    }
+
+    // ---- producer side ----
+
+    @Override
+    public void offer(T item) {
+        if (!spilling) {
+            if (buffer.tryOffer(item)) {
+                return;
+            }
+            if (spillUnavailable || !startSpilling()) {
+                buffer.offer(item); // spill file not available, wait for the consumer
+                return;
+            }
+        }
+        spill(item);
+    }
+
+    @Override
+    public void addError(Throwable throwable) {
+        if (!spilling) {
+            buffer.addError(throwable);
+            return;
+        }
+        lock.lock();
+        try {
+            if (!closed) {
+                error = throwable;
+                close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!spilling) {
+            buffer.close();
+            return;
+        }
+        lock.lock();
+        try {
+            closed = true;
+            spilled.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void cancelQueryWith(Runnable cancelQuery) {
+        buffer.cancelQueryWith(cancelQuery); // cancelled with the buffer
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return (int) Math.min(buffer.size() + spilledCount - readCount, Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getProducerWaitNanos() {
+        lock.lock();
+        try {
+            return buffer.getProducerWaitNanos() + producerWaitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getConsumerWaitNanos() {
+        return buffer.getConsumerWaitNanos();
+    }
+
+    private boolean startSpilling() {
+        if (cancelled) {
+            throw new ClosedException();
+        }
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, "asyncjpastreaming-", ".spill");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.DELETE_ON_CLOSE)) {
+                ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, spillBytes); // mapping outlives the channel
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot spill stream to {}, waiting for the consumer instead: {}", directory, e.toString());
+            deleteQuietly(file);
+            spillUnavailable = true;
+            return false;
+        }
+        log.debug("Buffer is full, spilling stream to {}", file);
+        spilling = true;
+        buffer.close(); // the consumer continues with the spilled entities after the buffered ones
+        return true;
+    }
+
+    private void spill(T item) {
+        byte[] bytes;
+        try {
+            bytes = serializer.serialize(item);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to serialize entity for spilling", e);
+        }
+        int recordBytes = LENGTH_BYTES + bytes.length;
+        if (recordBytes > spillBytes) {
+            throw new AsyncJPAStreamingException("Entity of " + bytes.length + " bytes exceeds spill size of " + spillBytes + " bytes");
+        }
+
+        long position;
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            while (writePosition + recordBytes - readPosition > spillBytes && !cancelled) {
+                read.awaitUninterruptibly();
+            }
+            producerWaitNanos += System.nanoTime() - start;
+            if (cancelled) {
+                throw new ClosedException();
+            }
+            position = writePosition;
+        } finally {
+            lock.unlock();
+        }
+
+        // the region is not read before the write position is published below
+        write(position, ByteBuffer.allocate(LENGTH_BYTES).putInt(0, bytes.length).array());
+        write(position + LENGTH_BYTES, bytes);
+
+        lock.lock();
+        try {
+            writePosition = position + recordBytes;
+            spilledCount++;
+            spilled.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(long position, byte[] bytes) {
+        int offset = (int) (position % spillBytes);
+        int first = Math.min(bytes.length, spillBytes - offset);
+        ring.put(offset, bytes, 0, first);
+        ring.put(0, bytes, first, bytes.length - first);
+    }
+
+    // ---- consumer side ----
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (!bufferDrained) {
+            if (buffer.tryAdvance(action)) {
+                return true;
+            }
+            if (!spilling) {
+                return false; // completed or cancelled without spilling
+            }
+            bufferDrained = true;
+        }
+
+        T item = readSpilled();
+        if (item == null) {
+            return false;
+        }
+        action.accept(item);
+        return true;
+    }
+
+    @Override
+    public void abort(Throwable throwable) {
+        aborted = throwable;
+        buffer.abort(throwable);
+        cancel();
+        lock.lock();
+        try {
+            spilled.signal(); // the consumer may wait for spilled entities
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the consuming side, the producer stops with a {@link ClosedException} on its next offer.
+     */
+    void cancel() {
+        cancelled = true;
+        buffer.cancel();
+        lock.lock();
+        try {
+            read.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T readSpilled() {
+        long position;
+        lock.lock();
+        try {
+            while (readPosition == writePosition && !closed && !cancelled) {
+                spilled.awaitUninterruptibly();
+            }
+            if (cancelled) {
+                if (aborted != null) {
+                    throw AsyncJPAStreamingException.propagate(aborted);
+                }
+                return null;
+            }
+            if (readPosition == writePosition) {
+                if (error != null) {
+                    throw AsyncJPAStreamingException.propagate(error);
+                }
+                return null;
+            }
+            position = readPosition;
+        } finally {
+            lock.unlock();
+        }
+
+        int length = ByteBuffer.wrap(read(position, LENGTH_BYTES)).getInt();
+        byte[] bytes = read(position + LENGTH_BYTES, length);
+
+        lock.lock();
+        try {
+            readPosition = position + LENGTH_BYTES + length;
+            readCount++;
+            read.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            return (T) serializer.deserialize(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to deserialize spilled entity", e);
+        }
+    }
+
+    private byte[] read(long position, int length) {
+        byte[] bytes = new byte[length];
+        int offset = (int) (position % spillBytes);
+        int first = Math.min(length, spillBytes - offset);
+        ring.get(offset, bytes, 0, first);
+        ring.get(0, bytes, first, length - first);
+        return bytes;
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.debug("Cannot delete spill file {}", file, e);
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+}
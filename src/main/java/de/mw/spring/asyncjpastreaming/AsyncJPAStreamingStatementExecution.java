@@ -0,0 +1,80 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.hibernate.SessionEventListener;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Tracks the statements executed by the async thread of a stream, so a closed stream only cancels a statement
+ * while it is executing.
+ * <p>
+ * A statement cancelled after it finished would hit whatever the connection executes next: some drivers, e.g. H2,
+ * keep the cancel flag of a finished statement and fail its next execution. As the cancellation is retried until
+ * the query ended, see {@link AsyncJPAStreamingQueryCancellation}, it is ignored while no statement is executing.
+ * The end of a statement waits for a concurrent cancel, so the cancel never outlives the execution.
+ * </p>
+ */
+final class AsyncJPAStreamingStatementExecution implements SessionEventListener {
+
+    private final Runnable cancelStatement;
+
+    // guarded by this
+    private int executing;
+
+
+    private AsyncJPAStreamingStatementExecution(Runnable cancelStatement) {
+        this.cancelStatement = cancelStatement;
+    }
+
+    /**
+     * Tracks the statements of the given Hibernate session, cancelling its last query.
+     */
+    static AsyncJPAStreamingStatementExecution of(SharedSessionContractImplementor session) {
+        AsyncJPAStreamingStatementExecution execution = new AsyncJPAStreamingStatementExecution(session.getJdbcCoordinator()::cancelLastQuery);
+        session.getEventListenerManager().addListener(execution);
+        return execution;
+    }
+
+    /**
+     * Tracks a JDBC statement, which is executing between {@link #started()} and {@link #ended()}.
+     */
+    static AsyncJPAStreamingStatementExecution of(PreparedStatement statement) {
+        return new AsyncJPAStreamingStatementExecution(() -> {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                throw new AsyncJPAStreamingException("Cannot cancel statement", e);
+            }
+        });
+    }
+
+    synchronized void started() {
+        executing++;
+    }
+
+    synchronized void ended() {
+        executing--;
+    }
+
+    /**
+     * Cancels the statement if it is executing, otherwise does nothing.
+     */
+    synchronized void cancel() {
+        if (executing > 0) {
+            cancelStatement.run();
+        }
+    }
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        started();
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        ended();
+    }
+
+}
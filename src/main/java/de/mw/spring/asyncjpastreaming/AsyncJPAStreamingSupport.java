@@ -1,14 +1,24 @@
 package de.mw.spring.asyncjpastreaming;
 
-import com.oath.cyclops.async.adapters.Queue;
-
+import io.micrometer.observation.Observation;
+import org.hibernate.StatelessSession;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
@@ -21,17 +31,78 @@ public class AsyncJPAStreamingSupport {
 
     private final AsyncJPAStreamingTransactionSupport transactionSupport;
 
+    private final AsyncJPAStreamingMetrics metrics;
+
+    private final AsyncJPAStreamingTimeouts timeouts;
+
+    private final AsyncJPAStreamingAdmission admission;
+
+    private final AsyncJPAStreamingShutdown shutdown;
+
+    private final Executor mappingExecutor;
+
     private final int maxBufferCapacity;
 
+    private final int adaptiveMinCapacity;
+
+    private final int adaptiveMaxCapacity;
+
+    private final AsyncJPAStreamingBufferBudget bufferBudget;
+
     private final boolean enabled;
 
+    private final AsyncJPAStreamingFallback fallback;
+
+    private final AsyncJPAStreamingSerializer spillSerializer;
+
+    private final Path spillDirectory;
+
+    private final ConcurrentMap<Object, AsyncJPAStreamingBroadcast<?>> sharedStreams = new ConcurrentHashMap<>();
+
 
     AsyncJPAStreamingSupport(AsyncJPAStreamingTransactionSupport transactionSupport,
+                             AsyncJPAStreamingMetrics metrics,
+                             AsyncJPAStreamingTimeouts timeouts,
+                             AsyncJPAStreamingAdmission admission,
+                             AsyncJPAStreamingShutdown shutdown,
+                             @Qualifier("asyncJPAStreamingMappingExecutor") Executor mappingExecutor,
                              @Value("${app.configuration.asyncjpastreaming.maxBufferCapacity:" + Integer.MAX_VALUE + "}") int maxBufferCapacity,
-                             @Value("${app.configuration.asyncjpastreaming.enabled:true}") boolean enabled) {
+                             @Value("${app.configuration.asyncjpastreaming.adaptiveBuffer.minCapacity:64}") int adaptiveMinCapacity,
+                             @Value("${app.configuration.asyncjpastreaming.adaptiveBuffer.maxCapacity:10000}") int adaptiveMaxCapacity,
+                             @Value("${app.configuration.asyncjpastreaming.globalBufferCapacity:" + Integer.MAX_VALUE + "}") int globalBufferCapacity,
+                             @Value("${app.configuration.asyncjpastreaming.enabled:true}") boolean enabled,
+                             @Value("${app.configuration.asyncjpastreaming.fallback:LIST}") AsyncJPAStreamingFallback fallback,
+                             ObjectProvider<AsyncJPAStreamingSerializer> spillSerializer,
+                             @Value("${app.configuration.asyncjpastreaming.spill.directory:#{systemProperties['java.io.tmpdir']}}") String spillDirectory) {
         this.transactionSupport = transactionSupport;
+        this.metrics = metrics;
+        this.timeouts = timeouts;
+        this.admission = admission;
+        this.shutdown = shutdown;
+        this.mappingExecutor = mappingExecutor;
         this.maxBufferCapacity = maxBufferCapacity;
+        this.adaptiveMinCapacity = Math.max(adaptiveMinCapacity, 1);
+        this.adaptiveMaxCapacity = adaptiveMaxCapacity;
+        this.bufferBudget = new AsyncJPAStreamingBufferBudget(globalBufferCapacity);
         this.enabled = enabled;
+        this.fallback = fallback;
+        this.spillSerializer = spillSerializer.getIfUnique(AsyncJPAStreamingSerializer::java);
+        this.spillDirectory = Path.of(spillDirectory);
+    }
+
+    /**
+     * Executes the (repository) method in an {@link Async} optionally readonly {@link Transactional} thread
+     * and returns a lazy stream of entities. The stream of entities will be outside of the transaction.
+     *
+     * @see #streamAsync(Supplier, AsyncJPAStreamingOptions)
+     * @see AsyncJPAStreaming
+     */
+    public <T> Stream<T> streamAsync(Supplier<Stream<T>> repositorySupplier, boolean readonly, boolean clearEntityManager, int bufferCapacity) {
+        return streamAsync(repositorySupplier, AsyncJPAStreamingOptions.builder()
+                                                                       .readonly(readonly)
+                                                                       .clearEntityManager(clearEntityManager)
+                                                                       .bufferCapacity(bufferCapacity)
+                                                                       .build());
     }
 
     /**
@@ -39,56 +110,396 @@ public class AsyncJPAStreamingSupport {
      * and returns a lazy stream of entities. The stream of entities will be outside of the transaction.
      * <p>
      * Delegates the execution of the method to our async and transactional wrapper {@link AsyncJPAStreamingTransactionSupport}.
-     * Uses a readonly transaction.
      * </p>
-     * Uses a {@link LinkedBlockingQueue} for communication between this calling and the async thread.
-     * So different IO threads will not depend on each other.
+     * Uses an {@link AsyncJPAStreamingBuffer} for communication between this calling and the async thread.
+     * So different IO threads will not depend on each other. With a chunk size greater than 1 the async thread
+     * hands over the entities in chunks.
+     * <p>
+     * The stream is recorded by {@link AsyncJPAStreamingMetrics}, tagged with the {@link AsyncJPAStreamingOptions#getName() name}.
+     * </p>
+     * <p>
+     * The capacity of every buffer is reserved from the global buffer budget
+     * ({@code app.configuration.asyncjpastreaming.globalBufferCapacity}, counted in entities) until the stream
+     * is consumed or closed. When the budget is exhausted new streams get a reduced capacity.
+     * </p>
+     * <p>
+     * With admission control the stream waits in the calling thread for a connection reserved to streams,
+     * see {@link AsyncJPAStreaming#admissionGroup()}.
+     * </p>
      * <p>
      * When streaming is disabled the behaviour is emulated with fetching the whole stream to a List and
-     * then returning the List's stream.
+     * then returning the List's stream, or with {@link AsyncJPAStreamingFallback#STREAM} by streaming in the
+     * calling thread within a transaction lasting until the stream is closed.
      *
      * @see AsyncJPAStreaming
      */
-    public <T> Stream<T> streamAsync(Supplier<Stream<T>> repositorySupplier, boolean readonly, boolean clearEntityManager, int bufferCapacity) {
+    public <T> Stream<T> streamAsync(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
         if (enabled) {
-            if (transactionSupport.isAsyncJPAStreaming()) {
-                return repositorySupplier.get(); // prevent nested streaming
+            if (isNested(options)) {
+                return repositorySupplier.get(); // nested stream joins the transaction of the outer one
+            }
+
+            if (options.getSharingKey() != null) {
+                return streamShared(repositorySupplier, options);
             }
 
-            int capacity = Math.min(bufferCapacity, maxBufferCapacity);
-            BlockingQueue<T> underlyingQueue = new LinkedBlockingQueue<>(capacity);
-            Queue<T> queue = new Queue<>(underlyingQueue);
-            if (readonly) {
-                transactionSupport.streamAsyncTransactionalReadonlyToQueue(queue, repositorySupplier, clearEntityManager) // async in other thread and transaction
-                        .exceptionally(handleException(queue));
+            // closing the stream cancels the async thread, otherwise a memory and connection leak
+            // will happen when the capacity of the buffer is not unlimited
+            return startStream(options, sink -> startTransactional(sink, repositorySupplier, options));
+        } else if (fallback == AsyncJPAStreamingFallback.STREAM) {
+            return transactionSupport.streamSynchronous(repositorySupplier, options); // same thread joining or extending the transaction
+        } else {
+            if (options.isReadonly()) {
+                return transactionSupport.streamTransactionalReadonly(repositorySupplier, options); // same thread joining same transaction
             } else {
-                transactionSupport.streamAsyncTransactionalToQueue(queue, repositorySupplier, clearEntityManager) // async in other thread and transaction
-                        .exceptionally(handleException(queue));
+                return transactionSupport.streamTransactional(repositorySupplier, options); // same thread joining same transaction
+            }
+        }
+    }
+
+    /**
+     * Executes the (repository) method like {@link #streamAsync(Supplier, AsyncJPAStreamingOptions)} and maps the
+     * entities on the asyncJPAStreamingMappingExecutor, e.g.:
+     * <pre>
+     * streamAsyncMapped(() -> personRepository.streamAllBy(), person -> new PersonDto(person.getName()), options)
+     * </pre>
+     * The async thread only fetches the entities and hands them over, so an expensive mapping does not extend
+     * the transaction and runs on several cores. The consuming thread passes the entities in batches of
+     * {@link AsyncJPAStreamingOptions#getMappingBatchSize()} to the workers, up to two batches per worker thread
+     * are in flight. The order of the entities is preserved.
+     * <p>
+     * The mapping function is applied outside of the transaction in several threads at once. It must not
+     * load lazy associations, so the entities should be detached by the
+     * {@link AsyncJPAStreamingOptions#getPersistenceContextStrategy() persistence context strategy}
+     * and their associations fetched by the query.
+     * </p>
+     * When streaming is disabled or the method is called while streaming, the entities are mapped in the
+     * consuming thread.
+     *
+     * @param mapper maps an entity, e.g. to a DTO
+     */
+    public <T, R> Stream<R> streamAsyncMapped(Supplier<Stream<T>> repositorySupplier, Function<? super T, ? extends R> mapper,
+                                              AsyncJPAStreamingOptions options) {
+        Stream<T> entities = streamAsync(repositorySupplier, options);
+        if (!enabled || isNested(options)) {
+            return entities.map(mapper);
+        }
+        return AsyncJPAStreamingMappingSpliterator.map(entities, mapper, mappingExecutor, options.getMappingBatchSize(),
+                                                       2 * transactionSupport.getMappingThreads());
+    }
+
+    /**
+     * Executes the (repository) method for partitions of the key range concurrently, each in its own {@link Async}
+     * optionally readonly {@link Transactional} thread, and returns a lazy stream merging the entities of all partitions.
+     * The stream of entities will be outside of the transactions.
+     * <p>
+     * The number of {@link AsyncJPAStreamingOptions#getPartitions() partitions} is limited by the number of threads
+     * of the asyncJPAStreamingTaskExecutor and the connections of the admission control, which admits all partitions
+     * at once. Every partition has its own buffer as configured by the options.
+     * The partitions are merged in order of their key ranges with {@link AsyncJPAStreamingOptions#isOrderedMerge()},
+     * otherwise in order of arrival.
+     * </p>
+     * When streaming is disabled or the method is called while streaming, the method is executed
+     * for the whole key range like {@link #streamAsync(Supplier, AsyncJPAStreamingOptions)}.
+     *
+     * @param range keys of all entities to stream
+     * @param repositoryFunction (repository) method returning a {@link Stream} of the entities with keys in the given range
+     * @see AsyncJPAStreaming#partitions()
+     */
+    public <T> Stream<T> streamAsyncPartitioned(AsyncJPAStreamingKeyRange range, Function<AsyncJPAStreamingKeyRange, Stream<T>> repositoryFunction,
+                                                AsyncJPAStreamingOptions options) {
+        int partitions = Math.min(Math.min(options.getPartitions(), transactionSupport.getMaxConcurrentStreams()), admission.getPermits());
+        if (!enabled || partitions <= 1 || isNested(options)) {
+            return streamAsync(() -> repositoryFunction.apply(range), options);
+        }
+
+        List<AsyncJPAStreamingKeyRange> ranges = range.split(partitions);
+        List<AsyncJPAStreamingAdmission.Permit> permits = transactionSupport.isAsyncJPAStreaming()
+                ? Collections.nCopies(ranges.size(), AsyncJPAStreamingAdmission.Permit.NONE) // admitted with the outer stream
+                : admission.admit(options.getAdmissionGroup(), ranges.size());
+        List<AsyncJPAStreamingBuffer<T>> buffers = new ArrayList<>(ranges.size());
+        try {
+            // submitted in order, so the first partitions get a thread first when merging ordered
+            for (int i = 0; i < ranges.size(); i++) {
+                AsyncJPAStreamingKeyRange partition = ranges.get(i);
+                AsyncJPAStreamingAdmission.Permit permit = permits.get(i);
+                buffers.add(startBuffered(() -> repositoryFunction.apply(partition), options, () -> permit));
             }
+        } catch (RuntimeException e) {
+            buffers.forEach(AsyncJPAStreamingBuffer::cancel);
+            // the started partitions release their permits when their threads end, they may still hold connections
+            permits.subList(buffers.size(), permits.size()).forEach(AsyncJPAStreamingAdmission.Permit::release);
+            throw e;
+        }
 
-            return queue.jdkStream()
-                        .onClose(() -> {
-                            // make sure we pass on the close action to the queue, otherwise a memory and connection leak
-                            // will happen when the capacity of the queue is not unlimited
-                            queue.close();
-                            queue.closeAndClear();
-                            underlyingQueue.clear();
-                        });
+        if (options.isOrderedMerge()) {
+            return buffers.stream()
+                          .map(AsyncJPAStreamingBuffer::stream)
+                          .reduce(Stream::concat)
+                          .orElseThrow();
+        }
+        return AsyncJPAStreamingMergingSpliterator.merge(buffers);
+    }
+
+    /**
+     * Fetches the entities page by page with keyset pagination in an {@link Async} thread and returns a lazy stream
+     * of entities. Every page is fetched in its own short optionally readonly transaction, so no transaction and
+     * cursor is held for the whole stream and the connection is released while the consumer drains the buffer.
+     * <p>
+     * The async thread fetches the next page when there is capacity in the buffer, the buffer capacity should
+     * therefore be at least the page size. The {@link AsyncJPAStreamingKeyset#getLastKey() last key} of the keyset
+     * is updated with every entity handed over to the consumer, so the stream can be resumed after it.
+     * </p>
+     * When streaming is disabled or the method is called while streaming, the pages are fetched in the calling thread.
+     *
+     * @see AsyncJPAStreamingKeyset
+     */
+    public <T, K> Stream<T> streamAsyncKeyset(AsyncJPAStreamingKeyset<T, K> keyset, AsyncJPAStreamingOptions options) {
+        Stream<T> stream;
+        if (enabled && !isNested(options)) {
+            stream = this.<T>startBuffered(options, sink -> transactionSupport.streamAsyncKeysetToQueue(sink, keyset, options.isReadonly())).stream();
         } else {
-            if (readonly) {
-                return transactionSupport.streamTransactionalReadonly(repositorySupplier, clearEntityManager); // same thread joining same transaction
+            stream = transactionSupport.streamKeyset(keyset, options.isReadonly());
+        }
+        return stream.peek(keyset::consumed);
+    }
+
+    /**
+     * Executes the query with a Hibernate {@link StatelessSession} in an {@link Async} optionally readonly
+     * {@link Transactional} thread and returns a lazy stream of entities, e.g.:
+     * <pre>
+     * streamAsyncStateless(session -> session.createSelectionQuery("from Person", Person.class)
+     *                                         .setFetchSize(1000)
+     *                                         .getResultStream(), options)
+     * </pre>
+     * The stateless session shares the connection of the transaction and does not build up a persistence context,
+     * so the {@link AsyncJPAStreamingOptions#getPersistenceContextStrategy() persistence context strategy} is not needed.
+     * Associations are not loaded lazily by a stateless session, they must be fetched by the query.
+     * <p>
+     * When streaming is disabled or the method is called while streaming, the query is executed in the calling thread
+     * within the current transaction like {@link #streamAsync(Supplier, AsyncJPAStreamingOptions)}.
+     * </p>
+     *
+     * @see #streamAsync(Supplier, AsyncJPAStreamingOptions)
+     */
+    public <T> Stream<T> streamAsyncStateless(Function<StatelessSession, Stream<T>> query, AsyncJPAStreamingOptions options) {
+        if (enabled && !isNested(options)) {
+            return this.<T>startStream(options, sink -> options.isReadonly()
+                                                        ? transactionSupport.streamAsyncStatelessReadonlyToQueue(sink, query, options)
+                                                        : transactionSupport.streamAsyncStatelessToQueue(sink, query, options));
+        }
+        return streamAsync(() -> transactionSupport.streamStateless(query), options);
+    }
+
+    /**
+     * Executes the SQL query in an {@link Async} optionally readonly {@link Transactional} thread and returns a lazy
+     * stream of its rows mapped by the row mapper, e.g. for exports of a few columns:
+     * <pre>
+     * streamAsyncRows("select name from person order by id", (resultSet, row) -> new PersonDto(resultSet.getString(1)), options)
+     * </pre>
+     * The rows are read with the {@link org.springframework.jdbc.core.JdbcTemplate JdbcTemplate} on the connection
+     * of the transaction, so no entities are instantiated, no snapshots for dirty checking are taken and no persistence
+     * context is built up. The fetch size is the one of the JdbcTemplate ({@code spring.jdbc.template.fetch-size}).
+     * Closing the stream cancels the running statement. Without a unique JdbcTemplate bean the call fails with an
+     * {@link IllegalStateException}, the other streams do not need it.
+     * <p>
+     * Constructor projections and tuples of JPQL queries ({@code select new PersonDto(p.name) from Person p}) do not
+     * create entities either, they are streamed with {@link #streamAsync(Supplier, AsyncJPAStreamingOptions)}.
+     * </p>
+     * When streaming is disabled or the method is called while streaming, the query is executed in the calling thread
+     * within the current transaction like {@link #streamAsync(Supplier, AsyncJPAStreamingOptions)}.
+     *
+     * @param sql SQL query with {@code ?} placeholders for the arguments
+     * @param rowMapper maps the current row of the result set
+     * @param args arguments of the placeholders
+     */
+    public <T> Stream<T> streamAsyncRows(String sql, RowMapper<T> rowMapper, AsyncJPAStreamingOptions options, Object... args) {
+        transactionSupport.requireJdbcTemplate(); // fails in the calling thread
+        if (enabled && !isNested(options)) {
+            return this.<T>startStream(options, sink -> options.isReadonly()
+                                                        ? transactionSupport.streamAsyncRowsReadonlyToQueue(sink, sql, rowMapper, args, options)
+                                                        : transactionSupport.streamAsyncRowsToQueue(sink, sql, rowMapper, args, options));
+        }
+        return streamAsync(() -> transactionSupport.streamRows(sql, rowMapper, args), options);
+    }
+
+    /**
+     * Executes the (repository) method in an {@link Async} optionally readonly {@link Transactional} thread
+     * and returns a demand driven publisher of entities. The entities will be outside of the transaction.
+     * <p>
+     * The async thread is started with the first request of a subscriber, every subscription executes the method again.
+     * Entities are handed over directly to the subscriber in the async thread while there is outstanding demand,
+     * the buffer capacity and chunk size of the options are not used. Cancelling the subscription closes the stream
+     * of the (repository) method and ends the transaction.
+     * </p>
+     * When streaming is disabled or the method is called while streaming, the entities are emitted
+     * in the requesting thread instead.
+     *
+     * @see AsyncJPAStreaming
+     */
+    public <T> Flow.Publisher<T> publishAsync(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        if (enabled) {
+            if (isNested(options)) {
+                return AsyncJPAStreamingPublisher.synchronous(repositorySupplier); // nested stream joins the transaction of the outer one
+            }
+            return new AsyncJPAStreamingPublisher<>(sink -> startAsync(sink, repositorySupplier, options), timeouts::queryCancellation);
+        } else {
+            if (options.isReadonly()) {
+                return AsyncJPAStreamingPublisher.synchronous(() -> transactionSupport.streamTransactionalReadonly(repositorySupplier, options));
             } else {
-                return transactionSupport.streamTransactional(repositorySupplier, clearEntityManager); // same thread joining same transaction
+                return AsyncJPAStreamingPublisher.synchronous(() -> transactionSupport.streamTransactional(repositorySupplier, options));
             }
         }
     }
 
-    private <T> Function<Throwable, Void> handleException(Queue<T> queue) {
-        return throwable -> {
-            if (queue.isOpen()) {
-                queue.addError(throwable);
-                queue.close();
+    /**
+     * Whether the stream is requested by the async thread of another stream and joins it.
+     */
+    private boolean isNested(AsyncJPAStreamingOptions options) {
+        return options.getNested() == AsyncJPAStreamingNested.JOIN && transactionSupport.isAsyncJPAStreaming();
+    }
+
+    private <T> AsyncJPAStreamingBuffer<T> startBuffered(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options,
+                                                         Supplier<AsyncJPAStreamingAdmission.Permit> admit) {
+        return startBuffered(options, admit, sink -> startTransactional(sink, repositorySupplier, options));
+    }
+
+    /**
+     * Starts the async task with a buffer, which spills to disk when configured, and returns the consuming stream.
+     */
+    private <T> Stream<T> startStream(AsyncJPAStreamingOptions options, Function<AsyncJPAStreamingSink<T>, CompletableFuture<Void>> task) {
+        if (options.getSpillBytes() <= 0) {
+            return startBuffered(options, task).stream();
+        }
+        AsyncJPAStreamingSerializer serializer = options.getSerializer() != null ? options.getSerializer() : spillSerializer;
+        AsyncJPAStreamingSpill<T> spill = new AsyncJPAStreamingSpill<>(createBuffer(options), serializer, options.getSpillBytes(), spillDirectory);
+        try {
+            startAsync(spill, options, task);
+        } catch (RuntimeException e) {
+            spill.cancel(); // e.g. rejected by the executor, return the reserved capacity
+            throw e;
+        }
+        return spill.stream();
+    }
+
+    private <T> AsyncJPAStreamingBuffer<T> startBuffered(AsyncJPAStreamingOptions options, Function<AsyncJPAStreamingSink<T>, CompletableFuture<Void>> task) {
+        return startBuffered(options, () -> admission.admit(options.getAdmissionGroup()), task);
+    }
+
+    private <T> AsyncJPAStreamingBuffer<T> startBuffered(AsyncJPAStreamingOptions options, Supplier<AsyncJPAStreamingAdmission.Permit> admit,
+                                                         Function<AsyncJPAStreamingSink<T>, CompletableFuture<Void>> task) {
+        AsyncJPAStreamingBuffer<T> buffer = createBuffer(options);
+        try {
+            startAsync(buffer, options, admit, task);
+        } catch (RuntimeException e) {
+            buffer.cancel(); // e.g. rejected by the executor, return the reserved capacity
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Joins the running stream with the same sharing key or starts a new one which can be joined by others.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Stream<T> streamShared(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        Object key = options.getSharingKey();
+        Supplier<AsyncJPAStreamingBuffer<T>> bufferFactory = () -> createBuffer(options);
+        while (true) {
+            AsyncJPAStreamingBroadcast<T> running = (AsyncJPAStreamingBroadcast<T>) sharedStreams.get(key);
+            if (running != null) {
+                Stream<T> joined = running.join(bufferFactory);
+                if (joined != null) {
+                    return joined;
+                }
+                sharedStreams.remove(key, running);
+                continue;
+            }
+
+            AsyncJPAStreamingBroadcast<T> broadcast = new AsyncJPAStreamingBroadcast<>(options.getReplayCapacity(),
+                                                                                       unjoinable -> sharedStreams.remove(key, unjoinable),
+                                                                                       timeouts.queryCancellation());
+            if (sharedStreams.putIfAbsent(key, broadcast) != null) {
+                continue; // started concurrently, join it
             }
+            Stream<T> stream = broadcast.join(bufferFactory);
+            try {
+                startAsync(broadcast, repositorySupplier, options);
+            } catch (RuntimeException e) {
+                stream.close(); // e.g. rejected by the executor, joined subscribers received the error
+                throw e;
+            }
+            return stream;
+        }
+    }
+
+    private <T> AsyncJPAStreamingBuffer<T> createBuffer(AsyncJPAStreamingOptions options) {
+        int capacity = Math.min(options.getBufferCapacity(), maxBufferCapacity);
+        if (options.isAdaptiveBuffer()) {
+            int maxCapacity = Math.max(Math.min(capacity, adaptiveMaxCapacity), 1);
+            return new AsyncJPAStreamingBuffer<>(AsyncJPAStreamingBufferCapacity.adaptive(bufferBudget, adaptiveMinCapacity, maxCapacity), options.getChunkSize(),
+                                                 timeouts.queryCancellation());
+        }
+        if (bufferBudget.isUnlimited()) {
+            return new AsyncJPAStreamingBuffer<>(capacity, options.getChunkSize(), timeouts.queryCancellation());
+        }
+        return new AsyncJPAStreamingBuffer<>(AsyncJPAStreamingBufferCapacity.fixed(bufferBudget, capacity, adaptiveMinCapacity), options.getChunkSize(),
+                                             timeouts.queryCancellation());
+    }
+
+    private <T> void startAsync(AsyncJPAStreamingSink<T> sink, Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        startAsync(sink, options, recorder -> startTransactional(recorder, repositorySupplier, options));
+    }
+
+    private <T> CompletableFuture<Void> startTransactional(AsyncJPAStreamingSink<T> sink, Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        if (options.isReadonly()) {
+            return transactionSupport.streamAsyncTransactionalReadonlyToQueue(sink, repositorySupplier, options); // async in other thread and transaction
+        } else {
+            return transactionSupport.streamAsyncTransactionalToQueue(sink, repositorySupplier, options); // async in other thread and transaction
+        }
+    }
+
+    private <T> void startAsync(AsyncJPAStreamingSink<T> sink, AsyncJPAStreamingOptions options, Function<AsyncJPAStreamingSink<T>, CompletableFuture<Void>> task) {
+        startAsync(sink, options, () -> admission.admit(options.getAdmissionGroup()), task);
+    }
+
+    /**
+     * Records the stream and starts the async task with the recording sink, watched for the timeouts of the options
+     * and drained on shutdown, once the stream is admitted.
+     *
+     * @param admit waits for the admission of the stream, not called for nested streams
+     */
+    private <T> void startAsync(AsyncJPAStreamingSink<T> sink, AsyncJPAStreamingOptions options, Supplier<AsyncJPAStreamingAdmission.Permit> admit,
+                                Function<AsyncJPAStreamingSink<T>, CompletableFuture<Void>> task) {
+        AsyncJPAStreamingMetrics.StreamRecorder<T> recorder = metrics.record(sink, options.getName());
+        try (Observation.Scope scope = recorder.openScope()) { // observation is propagated to the async thread
+            AsyncJPAStreamingShutdown.InFlight<T> inFlight = shutdown.track(timeouts.watch(recorder, options)); // rejected when shutting down
+            AsyncJPAStreamingAdmission.Permit permit = AsyncJPAStreamingAdmission.Permit.NONE;
+            try {
+                if (!transactionSupport.isAsyncJPAStreaming()) { // nested streams are admitted with their outer stream
+                    permit = admit.get();
+                }
+                AsyncJPAStreamingAdmission.Permit admitted = permit;
+                task.apply(inFlight)
+                    .whenComplete((result, throwable) -> {
+                        admitted.release();
+                        inFlight.ended();
+                    })
+                    .exceptionally(handleException(recorder));
+            } catch (RuntimeException e) {
+                permit.release();
+                inFlight.ended();
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            recorder.addError(e);
+            throw e;
+        }
+    }
+
+    private <T> Function<Throwable, Void> handleException(AsyncJPAStreamingSink<T> sink) {
+        return throwable -> {
+            sink.addError(throwable); // NOOP if already closed
             return null;
         };
     }
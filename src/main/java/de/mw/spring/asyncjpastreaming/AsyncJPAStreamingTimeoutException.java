@@ -0,0 +1,17 @@
+package de.mw.spring.asyncjpastreaming;
+
+/**
+ * Signals the consuming thread that a stream exceeded its {@link AsyncJPAStreaming#timeoutMillis() timeout}
+ * or {@link AsyncJPAStreaming#idleTimeoutMillis() idle timeout}. The cause is the failure of the cancelled query, if any.
+ */
+public class AsyncJPAStreamingTimeoutException extends AsyncJPAStreamingException {
+
+    public AsyncJPAStreamingTimeoutException(String message) {
+        super(message);
+    }
+
+    public AsyncJPAStreamingTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
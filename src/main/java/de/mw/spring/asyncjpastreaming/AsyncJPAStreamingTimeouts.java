@@ -0,0 +1,207 @@
+package de.mw.spring.asyncjpastreaming;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the {@link AsyncJPAStreaming#timeoutMillis() timeout} and {@link AsyncJPAStreaming#idleTimeoutMillis() idle timeout}
+ * of streams.
+ * <p>
+ * A single daemon thread watches all streams with timeouts. When a stream times out its running query is cancelled
+ * and the stream is aborted, so the async thread is neither stuck in a long-running statement nor waiting for a slow
+ * consumer and returns the connection right away. The consumer receives an {@link AsyncJPAStreamingTimeoutException}
+ * instead of the remaining entities.
+ * </p>
+ * <p>
+ * The thread also retries the cancellation of the queries of closed streams, see {@link AsyncJPAStreamingQueryCancellation},
+ * and is stopped when the application context is closed.
+ * </p>
+ */
+@Slf4j
+@Component
+class AsyncJPAStreamingTimeouts {
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+
+    AsyncJPAStreamingTimeouts() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("asyncJPA-timeout-");
+        threadFactory.setDaemon(true);
+        this.scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+        this.scheduler.setRemoveOnCancelPolicy(true); // streams usually end before their timeout
+    }
+
+    /**
+     * Returns a sink failing the stream when it times out, or the given sink when the options have no timeouts.
+     * The timeouts start now, so waiting for a thread and a connection counts.
+     */
+    <T> AsyncJPAStreamingSink<T> watch(AsyncJPAStreamingSink<T> sink, AsyncJPAStreamingOptions options) {
+        if (options.getTimeoutMillis() <= 0 && options.getIdleTimeoutMillis() <= 0) {
+            return sink;
+        }
+        return new Watchdog<>(sink, options.getTimeoutMillis(), options.getIdleTimeoutMillis());
+    }
+
+    /**
+     * Returns the query cancellation of a new stream, retried by the scheduler of the timeouts.
+     */
+    AsyncJPAStreamingQueryCancellation queryCancellation() {
+        return new AsyncJPAStreamingQueryCancellation(scheduler);
+    }
+
+    @PreDestroy
+    void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Sink of a stream with timeouts, fails the async thread and the consumer when the stream timed out.
+     */
+    private final class Watchdog<T> implements AsyncJPAStreamingSink<T> {
+
+        private final AsyncJPAStreamingSink<T> sink;
+
+        private final long idleTimeoutNanos;
+
+        private ScheduledFuture<?> deadline;
+
+        private ScheduledFuture<?> idleCheck;
+
+        // guarded by this
+        private boolean stopped;
+
+        private volatile String timeout;
+
+        private volatile long lastProgressNanos = System.nanoTime();
+
+        private volatile boolean waitingForConsumer;
+
+
+        Watchdog(AsyncJPAStreamingSink<T> sink, long timeoutMillis, long idleTimeoutMillis) {
+            this.sink = sink;
+            this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+            synchronized (this) {
+                if (timeoutMillis > 0) {
+                    deadline = scheduler.schedule(() -> timedOut("Stream exceeded its timeout of " + timeoutMillis + " ms"),
+                                                  timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                if (idleTimeoutNanos > 0) {
+                    idleCheck = scheduler.schedule(this::checkIdle, idleTimeoutNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        @Override
+        public void offer(T item) {
+            checkTimeout();
+            lastProgressNanos = System.nanoTime();
+            waitingForConsumer = true;
+            try {
+                sink.offer(item);
+            } finally {
+                waitingForConsumer = false;
+                lastProgressNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void addError(Throwable throwable) {
+            stop();
+            String reason = timeout;
+            if (reason != null && !(throwable instanceof AsyncJPAStreamingTimeoutException)) {
+                sink.addError(new AsyncJPAStreamingTimeoutException(reason, throwable)); // e.g. the cancelled query failed
+            } else {
+                sink.addError(throwable);
+            }
+        }
+
+        @Override
+        public void close() {
+            stop();
+            String reason = timeout;
+            if (reason != null) {
+                sink.addError(new AsyncJPAStreamingTimeoutException(reason)); // the cancelled query may end without failure
+            } else {
+                sink.close();
+            }
+        }
+
+        @Override
+        public void abort(Throwable throwable) {
+            sink.abort(throwable);
+        }
+
+        @Override
+        public void cancelQueryWith(Runnable cancelQuery) {
+            if (cancelQuery != null) {
+                checkTimeout();
+            }
+            sink.cancelQueryWith(cancelQuery);
+        }
+
+        @Override
+        public int size() {
+            return sink.size();
+        }
+
+        @Override
+        public long getProducerWaitNanos() {
+            return sink.getProducerWaitNanos();
+        }
+
+        @Override
+        public long getConsumerWaitNanos() {
+            return sink.getConsumerWaitNanos();
+        }
+
+        private void checkTimeout() {
+            String reason = timeout;
+            if (reason != null) {
+                throw new AsyncJPAStreamingTimeoutException(reason);
+            }
+        }
+
+        /**
+         * Times out when no entity was fetched for the idle timeout, the time waiting for the consumer does not count.
+         */
+        private synchronized void checkIdle() {
+            if (stopped) {
+                return;
+            }
+            long idleNanos = waitingForConsumer ? 0 : System.nanoTime() - lastProgressNanos;
+            if (idleNanos >= idleTimeoutNanos) {
+                timedOut("Stream fetched no entity for its idle timeout of " + TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) + " ms");
+            } else {
+                idleCheck = scheduler.schedule(this::checkIdle, idleTimeoutNanos - idleNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized void timedOut(String reason) {
+            if (stopped) {
+                return;
+            }
+            log.debug("{}, cancelling its query", reason);
+            timeout = reason;
+            stop();
+            sink.abort(new AsyncJPAStreamingTimeoutException(reason)); // cancels the query, wakes an async thread waiting for the consumer
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+            }
+        }
+
+    }
+
+}
@@ -1,27 +1,53 @@
 package de.mw.spring.asyncjpastreaming;
 
-import com.oath.cyclops.async.adapters.Queue;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.TypedQuery;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.jdbc.metadata.DataSourcePoolMetadataProvider;
+import org.springframework.boot.task.SimpleAsyncTaskExecutorBuilder;
 import org.springframework.boot.task.ThreadPoolTaskExecutorBuilder;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.core.task.support.CompositeTaskDecorator;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
-import java.util.Objects;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Async and transactional support for {@link AsyncJPAStreaming} aspect.
@@ -31,11 +57,27 @@ import java.util.stream.Stream;
 @Slf4j
 class AsyncJPAStreamingTransactionSupport {
 
-    private static final int CLEAR_ENTITYMANAGER_INTERVAL = 1000;
+    private static final String THREAD_NAME_PREFIX = "asyncJPA-";
+
+    private static final String MAPPING_THREAD_NAME_PREFIX = "asyncJPA-map-";
 
     private final EntityManager entityManager;
 
-    private ThreadPoolTaskExecutor executor;
+    private final PlatformTransactionManager transactionManager;
+
+    // optional, only required for streaming rows
+    private final ObjectProvider<JdbcTemplate> jdbcTemplate;
+
+    private final AsyncJPAStreamingFetchSize fetchSize;
+
+    /**
+     * Marks the threads executing a stream, set by a task decorator of the asyncJPAStreamingTaskExecutor
+     */
+    private static final ThreadLocal<Boolean> STREAMING = new ThreadLocal<>();
+
+    private int maxConcurrentStreams = 1;
+
+    private int mappingThreads = 1;
 
 
     /**
@@ -49,8 +91,8 @@ class AsyncJPAStreamingTransactionSupport {
      */
     @Transactional(readOnly = true)
     @Async("asyncJPAStreamingTaskExecutor")
-    public <T> CompletableFuture<Void> streamAsyncTransactionalReadonlyToQueue(Queue<T> queue, Supplier<Stream<T>> repositorySupplier, boolean clearEntityManager) {
-        streamToQueue(queue, repositorySupplier, clearEntityManager);
+    public <T> CompletableFuture<Void> streamAsyncTransactionalReadonlyToQueue(AsyncJPAStreamingSink<T> queue, Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        streamToQueue(queue, prefetching(repositorySupplier, options), persistenceContext(options), cancelQuery(), options);
         return CompletableFuture.completedFuture(null);
     }
 
@@ -65,11 +107,198 @@ class AsyncJPAStreamingTransactionSupport {
      */
     @Transactional
     @Async("asyncJPAStreamingTaskExecutor")
-    public <T> CompletableFuture<Void> streamAsyncTransactionalToQueue(Queue<T> queue, Supplier<Stream<T>> repositorySupplier, boolean clearEntityManager) {
-        streamToQueue(queue, repositorySupplier, clearEntityManager);
+    public <T> CompletableFuture<Void> streamAsyncTransactionalToQueue(AsyncJPAStreamingSink<T> queue, Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        streamToQueue(queue, prefetching(repositorySupplier, options), persistenceContext(options), cancelQuery(), options);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Fetches the pages of the keyset asynchronously, each page in its own short (readonly) transaction.
+     * The connection is released after each page, while the entities of the page are handed over to the queue.
+     * Uses an own threadPoolTaskExecutor.
+     *
+     * @param <T> entity type
+     * @param queue communication bridge between calling and the async thread
+     * @param keyset page query and the key to start after
+     * @return CompletableFuture used to transport an exception if the async thread fails (e.g. when there is a connection timeout)
+     */
+    @Async("asyncJPAStreamingTaskExecutor")
+    public <T, K> CompletableFuture<Void> streamAsyncKeysetToQueue(AsyncJPAStreamingSink<T> queue, AsyncJPAStreamingKeyset<T, K> keyset, boolean readonly) {
+        streamToQueue(queue, () -> streamKeyset(keyset, readonly), item -> {}, null, null); // every page has its own persistence context
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Executes the given query asynchronously with a Hibernate {@link StatelessSession} in a readonly transaction.
+     * The stateless session uses the connection of the transaction, no persistence context is built up.
+     * Uses an own threadPoolTaskExecutor.
+     *
+     * @param <T> entity type
+     * @param queue communication bridge between calling and the async thread
+     * @param query query returning a {@link Stream} of entities with the given stateless session
+     * @return CompletableFuture used to transport an exception if the async thread fails (e.g. when there is a connection timeout)
+     */
+    @Transactional(readOnly = true)
+    @Async("asyncJPAStreamingTaskExecutor")
+    public <T> CompletableFuture<Void> streamAsyncStatelessReadonlyToQueue(AsyncJPAStreamingSink<T> queue, Function<StatelessSession, Stream<T>> query,
+                                                                           AsyncJPAStreamingOptions options) {
+        streamToQueue(queue, () -> streamStateless(query, queue::cancelQueryWith), item -> {}, null, options);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Executes the given query asynchronously with a Hibernate {@link StatelessSession} in a transaction.
+     *
+     * @see #streamAsyncStatelessReadonlyToQueue(AsyncJPAStreamingSink, Function, AsyncJPAStreamingOptions)
+     */
+    @Transactional
+    @Async("asyncJPAStreamingTaskExecutor")
+    public <T> CompletableFuture<Void> streamAsyncStatelessToQueue(AsyncJPAStreamingSink<T> queue, Function<StatelessSession, Stream<T>> query,
+                                                                   AsyncJPAStreamingOptions options) {
+        streamToQueue(queue, () -> streamStateless(query, queue::cancelQueryWith), item -> {}, null, options);
         return CompletableFuture.completedFuture(null);
     }
 
+    /**
+     * Executes the given query with a Hibernate {@link StatelessSession} sharing the connection of the current transaction.
+     * Closing the returned stream closes the stateless session.
+     */
+    public <T> Stream<T> streamStateless(Function<StatelessSession, Stream<T>> query) {
+        return streamStateless(query, cancelQuery -> {});
+    }
+
+    private <T> Stream<T> streamStateless(Function<StatelessSession, Stream<T>> query, Consumer<Runnable> cancelQueryRegistration) {
+        Session session = entityManager.unwrap(Session.class);
+        Connection connection = session.doReturningWork(transactionConnection -> transactionConnection);
+        StatelessSession statelessSession = session.getSessionFactory()
+                                                   .withStatelessOptions()
+                                                   .connection(connection)
+                                                   .openStatelessSession();
+        try {
+            cancelQueryRegistration.accept(AsyncJPAStreamingStatementExecution.of((SharedSessionContractImplementor) statelessSession)::cancel);
+            return query.apply(statelessSession)
+                        .onClose(statelessSession::close);
+        } catch (RuntimeException e) {
+            statelessSession.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Executes the given SQL query asynchronously with the {@link JdbcTemplate} in a readonly transaction and maps
+     * the rows of the result set with the given row mapper. The query uses the connection of the transaction,
+     * no entities are instantiated and no persistence context is built up.
+     * Uses an own threadPoolTaskExecutor.
+     *
+     * @param <T> row type
+     * @param queue communication bridge between calling and the async thread
+     * @param sql SQL query with {@code ?} placeholders for the arguments
+     * @return CompletableFuture used to transport an exception if the async thread fails (e.g. when there is a connection timeout)
+     */
+    @Transactional(readOnly = true)
+    @Async("asyncJPAStreamingTaskExecutor")
+    public <T> CompletableFuture<Void> streamAsyncRowsReadonlyToQueue(AsyncJPAStreamingSink<T> queue, String sql, RowMapper<T> rowMapper, Object[] args,
+                                                              AsyncJPAStreamingOptions options) {
+        AtomicReference<AsyncJPAStreamingStatementExecution> execution = new AtomicReference<>();
+        streamToQueue(queue, () -> streamRows(sql, rowMapper, args, execution), item -> {}, cancelStatement(execution), options);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Executes the given SQL query asynchronously with the {@link JdbcTemplate} in a transaction.
+     *
+     * @see #streamAsyncRowsReadonlyToQueue(AsyncJPAStreamingSink, String, RowMapper, Object[], AsyncJPAStreamingOptions)
+     */
+    @Transactional
+    @Async("asyncJPAStreamingTaskExecutor")
+    public <T> CompletableFuture<Void> streamAsyncRowsToQueue(AsyncJPAStreamingSink<T> queue, String sql, RowMapper<T> rowMapper, Object[] args,
+                                                              AsyncJPAStreamingOptions options) {
+        AtomicReference<AsyncJPAStreamingStatementExecution> execution = new AtomicReference<>();
+        streamToQueue(queue, () -> streamRows(sql, rowMapper, args, execution), item -> {}, cancelStatement(execution), options);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Executes the given SQL query with the {@link JdbcTemplate} sharing the connection of the current transaction.
+     * Closing the returned stream closes the result set and the statement.
+     */
+    public <T> Stream<T> streamRows(String sql, RowMapper<T> rowMapper, Object[] args) {
+        return streamRows(sql, rowMapper, args, new AtomicReference<>());
+    }
+
+    /**
+     * Returns the unique {@link JdbcTemplate} bean, e.g. auto-configured with {@code spring-boot-starter-jdbc}.
+     *
+     * @throws IllegalStateException when there is none, streaming entities does not need it
+     */
+    JdbcTemplate requireJdbcTemplate() {
+        JdbcTemplate template = jdbcTemplate.getIfUnique();
+        if (template == null) {
+            throw new IllegalStateException("AsyncJPAStreaming of rows requires a unique JdbcTemplate bean");
+        }
+        return template;
+    }
+
+    /**
+     * @param execution set to the execution of the prepared statement, which ends when the query returned its result set
+     */
+    private <T> Stream<T> streamRows(String sql, RowMapper<T> rowMapper, Object[] args,
+                                     AtomicReference<AsyncJPAStreamingStatementExecution> execution) {
+        try {
+            return requireJdbcTemplate().queryForStream(connection -> {
+                PreparedStatement statement = connection.prepareStatement(sql);
+                new ArgumentPreparedStatementSetter(args).setValues(statement);
+                AsyncJPAStreamingStatementExecution executing = AsyncJPAStreamingStatementExecution.of(statement);
+                executing.started();
+                execution.set(executing);
+                return statement;
+            }, rowMapper);
+        } finally {
+            AsyncJPAStreamingStatementExecution executed = execution.get();
+            if (executed != null) {
+                executed.ended();
+            }
+        }
+    }
+
+    /**
+     * Fetches the pages of the keyset lazily in the calling thread, each page in its own short (readonly) transaction
+     * or within the current transaction.
+     *
+     * @param <T> entity type
+     * @param keyset page query and the key to start after
+     */
+    public <T, K> Stream<T> streamKeyset(AsyncJPAStreamingKeyset<T, K> keyset, boolean readonly) {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setReadOnly(readonly);
+
+        Spliterator<List<T>> pages = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+            private K lastKey = keyset.getLastKey();
+
+            private boolean lastPage;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super List<T>> action) {
+                if (lastPage) {
+                    return false;
+                }
+                K after = lastKey;
+                List<T> page = transaction.execute(status -> keyset.fetchPage(after));
+                log.trace("Fetched page of {} entities after key {}", page.size(), after);
+
+                lastPage = page.size() < keyset.getPageSize();
+                if (!page.isEmpty()) {
+                    lastKey = keyset.keyOf(page.getLast());
+                }
+                action.accept(page);
+                return true;
+            }
+        };
+        return StreamSupport.stream(pages, false)
+                            .flatMap(List::stream);
+    }
+
     /**
      * Executes the given repository method synchronously in a readonly transaction.
      * This method effectively circumvents real streaming of data. Streaming is emulated via a temporary list.
@@ -81,8 +310,8 @@ class AsyncJPAStreamingTransactionSupport {
      * @param repositorySupplier repository method returning a {@link Stream} of entities
      */
     @Transactional(readOnly = true)
-    public <T> Stream<T> streamTransactionalReadonly(Supplier<Stream<T>> repositorySupplier, boolean clearEntityManager) {
-        return streamWithList(repositorySupplier, clearEntityManager);
+    public <T> Stream<T> streamTransactionalReadonly(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        return streamWithList(prefetching(repositorySupplier, options), persistenceContext(options));
     }
 
     /**
@@ -96,47 +325,183 @@ class AsyncJPAStreamingTransactionSupport {
      * @param repositorySupplier repository method returning a {@link Stream} of entities
      */
     @Transactional
-    public <T> Stream<T> streamTransactional(Supplier<Stream<T>> repositorySupplier, boolean clearEntityManager) {
-        return streamWithList(repositorySupplier, clearEntityManager);
+    public <T> Stream<T> streamTransactional(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        return streamWithList(prefetching(repositorySupplier, options), persistenceContext(options));
     }
 
-    protected <T> void streamToQueue(Queue<T> queue, Supplier<Stream<T>> repositorySupplier, boolean clearEntityManager) {
-        try (Stream<T> entityStream = repositorySupplier.get()) {
-            AtomicInteger clearIntervalCounter = new AtomicInteger();
+    /**
+     * Executes the given repository method synchronously in an optionally readonly transaction which lasts until
+     * the returned stream is closed. Joins the current transaction if there is one.
+     * <p>
+     * The entities are streamed lazily from the open cursor in the calling thread, the stream has to be closed
+     * in this thread as the transaction is bound to it. The transaction is rolled back if the iteration failed,
+     * e.g. reading the cursor or an operation of the consumer threw, otherwise it is committed.
+     * </p>
+     *
+     * @param <T> entity type
+     * @param repositorySupplier repository method returning a {@link Stream} of entities
+     */
+    public <T> Stream<T> streamSynchronous(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+        definition.setName(options.getName());
+        definition.setReadOnly(options.isReadonly());
+        TransactionStatus transaction = transactionManager.getTransaction(definition);
+        try {
+            log.trace("Streaming JPA results synchronously...");
+            Stream<T> stream = prefetching(repositorySupplier, options).get()
+                                                                       .peek(persistenceContext(options));
+            AtomicBoolean failed = new AtomicBoolean();
+            return StreamSupport.stream(failureTracking(stream.spliterator(), failed), false)
+                                .onClose(stream::close)
+                                .onClose(() -> { // after closing the cursor
+                                    if (failed.get()) {
+                                        transactionManager.rollback(transaction);
+                                    } else {
+                                        transactionManager.commit(transaction);
+                                    }
+                                });
+        } catch (RuntimeException | Error e) {
+            transactionManager.rollback(transaction);
+            throw e;
+        }
+    }
 
-            log.trace("Streaming JPA results asynchronously...");
-            entityStream.forEach(item -> {
-                queue.offer(item);
-                if (clearEntityManager) {
-                    clearEntityManager(clearIntervalCounter);
+    /**
+     * Sets the flag when advancing the given spliterator throws.
+     */
+    private static <T> Spliterator<T> failureTracking(Spliterator<T> spliterator, AtomicBoolean failed) {
+        return new Spliterators.AbstractSpliterator<>(spliterator.estimateSize(), spliterator.characteristics()) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    return spliterator.tryAdvance(action);
+                } catch (RuntimeException | Error e) {
+                    failed.set(true);
+                    throw e;
                 }
-            });
-        } catch (Queue.ClosedQueueException e) {
+            }
+        };
+    }
+
+    /**
+     * Cancels the executing query of this thread's session from another thread. The session implementation is unwrapped,
+     * as the shared entity manager proxy would cancel the queries of another session outside of this transaction.
+     */
+    private Runnable cancelQuery() {
+        return AsyncJPAStreamingStatementExecution.of(entityManager.unwrap(SharedSessionContractImplementor.class))::cancel;
+    }
+
+    /**
+     * Cancels the statement of a JDBC query from another thread, while it is executing.
+     */
+    private static Runnable cancelStatement(AtomicReference<AsyncJPAStreamingStatementExecution> execution) {
+        return () -> {
+            AsyncJPAStreamingStatementExecution executing = execution.get();
+            if (executing != null) {
+                executing.cancel();
+            }
+        };
+    }
+
+    /**
+     * @param cancelQuery cancels the running query when the consumer closes the stream, {@code null} if not supported
+     * @param options options of the stream for tuning the fetch size of its query, {@code null} if not tuned
+     */
+    protected <T> void streamToQueue(AsyncJPAStreamingSink<T> queue, Supplier<Stream<T>> repositorySupplier, Consumer<? super T> persistenceContext,
+                                     Runnable cancelQuery, AsyncJPAStreamingOptions options) {
+        try {
+            if (cancelQuery != null) {
+                queue.cancelQueryWith(cancelQuery);
+            }
+            try (AsyncJPAStreamingFetchSize.Tuning tuning = fetchSize.tune(queue, options);
+                 Stream<T> entityStream = repositorySupplier.get()) {
+                log.trace("Streaming JPA results asynchronously...");
+                entityStream.forEach(item -> {
+                    queue.offer(item);
+                    tuning.fetched();
+                    persistenceContext.accept(item);
+                });
+            }
+        } catch (AsyncJPAStreamingSink.ClosedException e) {
             // queue was closed in consuming thread, NOOP
         } catch (Exception e) {
             queue.addError(e);
             throw e;
         } finally {
+            queue.cancelQueryWith(null);
             queue.close();
         }
     }
 
-    protected <T> Stream<T> streamWithList(Supplier<Stream<T>> repositorySupplier, boolean clearEntityManager) {
+    protected <T> Stream<T> streamWithList(Supplier<Stream<T>> repositorySupplier, Consumer<? super T> persistenceContext) {
         try (Stream<T> entityStream = repositorySupplier.get()) {
-            AtomicInteger clearIntervalCounter = new AtomicInteger();
-
             log.trace("Fetching and streaming JPA results synchronously...");
-            return entityStream.peek(item -> {
-                                   if (clearEntityManager) {
-                                       clearEntityManager(clearIntervalCounter);
-                                   }
-                                })
+            return entityStream.peek(persistenceContext)
                                .toList()
                                .stream();
         }
     }
 
-    private void clearEntityManager(AtomicInteger clearIntervalCounter) {
+    /**
+     * Initializes the {@link AsyncJPAStreaming#prefetch()} associations of the streamed entities in batches.
+     */
+    private <T> Supplier<Stream<T>> prefetching(Supplier<Stream<T>> repositorySupplier, AsyncJPAStreamingOptions options) {
+        if (options.getPrefetch().isEmpty()) {
+            return repositorySupplier;
+        }
+        return () -> AsyncJPAStreamingPrefetch.prefetch(repositorySupplier.get(), entityManager, options.getPrefetch(), options.getPrefetchBatchSize());
+    }
+
+    /**
+     * Returns the handling of the persistence context after each entity for a single stream.
+     */
+    private Consumer<Object> persistenceContext(AsyncJPAStreamingOptions options) {
+        return switch (options.getPersistenceContextStrategy()) {
+            case KEEP -> item -> {};
+            case CLEAR -> clearing(options.getClearInterval());
+            case DETACH -> detaching(options.getClearInterval());
+        };
+    }
+
+    private Consumer<Object> clearing(int clearInterval) {
+        AtomicInteger clearIntervalCounter = new AtomicInteger();
+        return item -> clearEntityManager(clearIntervalCounter, clearInterval);
+    }
+
+    private Consumer<Object> detaching(int clearInterval) {
+        Consumer<Object> clearing = clearing(clearInterval);
+        return new Consumer<>() {
+
+            private Boolean entities;
+
+            @Override
+            public void accept(Object item) {
+                if (entities == null) {
+                    entities = isEntity(item);
+                    if (!entities) {
+                        log.debug("Stream does not return entities but {}, clearing EntityManager instead of detaching", item.getClass().getName());
+                    }
+                }
+                if (entities) {
+                    // removes the entity and its snapshot from the persistence context
+                    entityManager.detach(item);
+                } else {
+                    clearing.accept(item);
+                }
+            }
+        };
+    }
+
+    private boolean isEntity(Object item) {
+        try {
+            entityManager.getMetamodel().entity(item.getClass());
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void clearEntityManager(AtomicInteger clearIntervalCounter, int clearInterval) {
         // clear the entity manager to reduce memory consumption
         // when streaming a large set of managed entity objects
         //
@@ -144,8 +509,8 @@ class AsyncJPAStreamingTransactionSupport {
         // this can require a lot of memory even if the queue size is limited
         // and the entity is mapped to a business model object and not used anymore
         int itemCount = clearIntervalCounter.incrementAndGet();
-        if (itemCount > CLEAR_ENTITYMANAGER_INTERVAL) { // do not clear after each item for performance reasons
-            log.trace("Clearing EntityManager, next clearing after {} entities", CLEAR_ENTITYMANAGER_INTERVAL);
+        if (itemCount >= clearInterval) { // do not clear after each item for performance reasons
+            log.trace("Clearing EntityManager, next clearing after {} entities", clearInterval);
             entityManager.clear();
             clearIntervalCounter.set(0);
         }
@@ -153,25 +518,196 @@ class AsyncJPAStreamingTransactionSupport {
 
     /**
      * Produces an own specialized threadPoolTaskExecutor with a core/max pool size matching the max connection pool size of the datasource.
+     * <p>
+     * With {@code app.configuration.asyncjpastreaming.virtualThreads=true} every stream runs in its own virtual thread instead.
+     * The number of concurrently running streams is still limited to the pool size by a {@link SubmissionOrderGate}.
+     * Streams exceeding the limit wait inside their virtual thread, which does not occupy a carrier thread, and start
+     * in the order they were submitted, as with the pool.
+     * </p>
+     * The stream observation of {@link AsyncJPAStreamingMetrics} is propagated to the async threads,
+     * in addition to a unique {@link TaskDecorator} bean, e.g. the {@link MdcTaskDecorator}.
+     * <p>
+     * On shutdown the executor waits up to {@code app.configuration.asyncjpastreaming.shutdown.terminationMillis}
+     * for the threads of the streams cancelled by {@link AsyncJPAStreamingShutdown}.
+     * </p>
      */
     @Bean(name = "asyncJPAStreamingTaskExecutor")
     public Executor threadPoolTaskExecutor(@Qualifier("hikariPoolDataSourceMetadataProvider") DataSourcePoolMetadataProvider meta,
                                            @Value("${app.configuration.asyncjpastreaming.threads:}") Integer threads,
+                                           @Value("${app.configuration.asyncjpastreaming.virtualThreads:false}") boolean virtualThreads,
                                            DataSource dataSource,
-                                           ThreadPoolTaskExecutorBuilder builder) {
+                                           ThreadPoolTaskExecutorBuilder builder,
+                                           SimpleAsyncTaskExecutorBuilder virtualThreadBuilder,
+                                           ObjectProvider<TaskDecorator> taskDecorator,
+                                           AsyncJPAStreamingMetrics metrics,
+                                           @Value("${app.configuration.asyncjpastreaming.shutdown.terminationMillis:5000}") long terminationMillis) {
         if (threads == null) {
             threads = meta.getDataSourcePoolMetadata(dataSource).getMax();
         }
-        
-        executor = builder.threadNamePrefix("asyncJPA-")
-                          .corePoolSize(threads)
-                          .maxPoolSize(threads)
-                          .build();
-        return executor;
+        this.maxConcurrentStreams = Math.max(threads, 1);
+
+        List<TaskDecorator> decorators = new ArrayList<>();
+        taskDecorator.ifUnique(decorators::add);
+        decorators.add(metrics.observationTaskDecorator());
+        decorators.add(streamingMarker());
+
+        if (virtualThreads) {
+            decorators.add(new SubmissionOrderGate(threads));
+
+            return virtualThreadBuilder.virtualThreads(true)
+                                       .threadNamePrefix(THREAD_NAME_PREFIX)
+                                       .taskTerminationTimeout(Duration.ofMillis(terminationMillis))
+                                       .taskDecorator(new CompositeTaskDecorator(decorators))
+                                       .build();
+        }
+
+        return builder.threadNamePrefix(THREAD_NAME_PREFIX)
+                      .corePoolSize(threads)
+                      .maxPoolSize(threads)
+                      .awaitTermination(true)
+                      .awaitTerminationPeriod(Duration.ofMillis(terminationMillis))
+                      .taskDecorator(new CompositeTaskDecorator(decorators))
+                      .build();
+    }
+
+    /**
+     * Produces the worker pool of {@link AsyncJPAStreamingSupport#streamAsyncMapped mapped streams}, with
+     * {@code app.configuration.asyncjpastreaming.mapping.threads} threads, default the number of processors.
+     * The mapping does not use connections, so the pool is independent of the connection pool.
+     */
+    @Bean(name = "asyncJPAStreamingMappingExecutor")
+    public Executor mappingTaskExecutor(@Value("${app.configuration.asyncjpastreaming.mapping.threads:0}") int threads,
+                                        ThreadPoolTaskExecutorBuilder builder,
+                                        ObjectProvider<TaskDecorator> taskDecorator) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.mappingThreads = threads;
+
+        ThreadPoolTaskExecutorBuilder mappingBuilder = builder.threadNamePrefix(MAPPING_THREAD_NAME_PREFIX)
+                                                              .corePoolSize(threads)
+                                                              .maxPoolSize(threads);
+        TaskDecorator decorator = taskDecorator.getIfUnique();
+        return (decorator != null ? mappingBuilder.taskDecorator(decorator) : mappingBuilder).build();
+    }
+
+    /**
+     * Marks the thread while it executes a stream, restores the previous mark as a task may also run
+     * in the calling thread, e.g. with a caller-runs rejection policy.
+     */
+    private static TaskDecorator streamingMarker() {
+        return runnable -> () -> {
+            Boolean previous = STREAMING.get();
+            STREAMING.set(Boolean.TRUE);
+            try {
+                runnable.run();
+            } finally {
+                if (previous == null) {
+                    STREAMING.remove();
+                } else {
+                    STREAMING.set(previous);
+                }
+            }
+        };
     }
     
+    /**
+     * Limits the virtual threads running at once, lets them start in the order their tasks were submitted.
+     * <p>
+     * The ticket is drawn when the task is decorated in the submitting thread, not when its virtual thread arrives
+     * at the gate, which may be in any order. Otherwise the later partitions of two concurrent ordered merges could
+     * take all permits and wait for their consumers, which wait for the first partitions.
+     * The wait uses a {@link Condition}, as a virtual thread waiting in a monitor pins its carrier thread.
+     * </p>
+     */
+    static final class SubmissionOrderGate implements TaskDecorator {
+
+        private final int permits;
+
+        private final Lock lock = new ReentrantLock();
+
+        private final Condition finishedChanged = lock.newCondition();
+
+        // guarded by lock
+        private long submitted;
+
+        // guarded by lock
+        private long finished;
+
+
+        SubmissionOrderGate(int permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public Runnable decorate(Runnable runnable) {
+            long ticket = draw();
+            return () -> {
+                await(ticket);
+                try {
+                    runnable.run();
+                } finally {
+                    finish();
+                }
+            };
+        }
+
+        private long draw() {
+            lock.lock();
+            try {
+                return submitted++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void await(long ticket) {
+            lock.lock();
+            try {
+                // started in ticket order, so at most permits tickets below finished + permits are running
+                while (ticket >= finished + permits) {
+                    finishedChanged.awaitUninterruptibly(); // parks the virtual thread only
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void finish() {
+            lock.lock();
+            try {
+                finished++;
+                finishedChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * Number of streams executed concurrently by the asyncJPAStreamingTaskExecutor.
+     */
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Number of threads of the asyncJPAStreamingMappingExecutor.
+     */
+    public int getMappingThreads() {
+        return mappingThreads;
+    }
+
+    /**
+     * Whether the current thread executes a stream of the asyncJPAStreamingTaskExecutor.
+     */
     public boolean isAsyncJPAStreaming() {
-        return Objects.equals(executor.getThreadGroup(), Thread.currentThread().getThreadGroup());
+        return isStreamingThread();
+    }
+
+    static boolean isStreamingThread() {
+        return STREAMING.get() != null;
     }
 
 }
@@ -0,0 +1,93 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingAdmissionTest {
+
+    @Test
+    void rejectsAfterMaxWait() {
+        AsyncJPAStreamingAdmission admission = new AsyncJPAStreamingAdmission(1, true, 50, Map.of());
+        AsyncJPAStreamingAdmission.Permit permit = admission.admit("a");
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> admission.admit("a"))
+                .isInstanceOf(AsyncJPAStreamingRejectedException.class)
+                .hasMessageContaining("not admitted within 50 ms");
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+
+        permit.release();
+        permit.release(); // no effect
+        assertThat(admission.getRunning()).isZero();
+        admission.admit("a").release();
+    }
+
+    @Test
+    void freedPermitGoesToGroupWithLowestWeightedShare() throws Exception {
+        AsyncJPAStreamingAdmission admission = new AsyncJPAStreamingAdmission(3, true, 5000, Map.of("b", 2));
+        AsyncJPAStreamingAdmission.Permit a1 = admission.admit("a");
+        AsyncJPAStreamingAdmission.Permit b1 = admission.admit("b");
+        AsyncJPAStreamingAdmission.Permit b2 = admission.admit("b");
+
+        List<String> admitted = new CopyOnWriteArrayList<>();
+        CompletableFuture<AsyncJPAStreamingAdmission.Permit> a2 = admitAsync(admission, "a", admitted);
+        CompletableFuture<AsyncJPAStreamingAdmission.Permit> b3 = admitAsync(admission, "b", admitted);
+        CompletableFuture<AsyncJPAStreamingAdmission.Permit> a3 = admitAsync(admission, "a", admitted);
+
+        b1.release(); // a has 1 running with weight 1, b 1 with weight 2
+        b3.get(5, TimeUnit.SECONDS);
+        b2.release(); // a arrived first, b has more running relative to its weight
+        a2.get(5, TimeUnit.SECONDS);
+        a1.release();
+        a3.get(5, TimeUnit.SECONDS);
+
+        assertThat(admitted).containsExactly("b", "a", "a");
+    }
+
+    @Test
+    void admitsSeveralStreamsAtOnce() throws Exception {
+        AsyncJPAStreamingAdmission admission = new AsyncJPAStreamingAdmission(3, true, 5000, Map.of());
+        List<AsyncJPAStreamingAdmission.Permit> first = admission.admit("a", 2);
+        assertThat(first).hasSize(2);
+
+        CompletableFuture<List<AsyncJPAStreamingAdmission.Permit>> second = CompletableFuture.supplyAsync(() -> admission.admit("a", 2));
+        Thread.sleep(100);
+        assertThat(second).as("not admitted partially").isNotDone();
+        assertThat(admission.getRunning()).isEqualTo(2);
+
+        first.getFirst().release();
+        assertThat(second.get(5, TimeUnit.SECONDS)).hasSize(2);
+        assertThat(admission.getRunning()).isEqualTo(3);
+
+        assertThatThrownBy(() -> admission.admit("a", 4))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void disabledAdmitsAll() {
+        AsyncJPAStreamingAdmission admission = new AsyncJPAStreamingAdmission(1, false, 0, Map.of());
+
+        assertThat(admission.admit("a")).isSameAs(AsyncJPAStreamingAdmission.Permit.NONE);
+        assertThat(admission.admit("a")).isSameAs(AsyncJPAStreamingAdmission.Permit.NONE);
+    }
+
+    private static CompletableFuture<AsyncJPAStreamingAdmission.Permit> admitAsync(AsyncJPAStreamingAdmission admission, String group,
+                                                                                    List<String> admitted) throws InterruptedException {
+        CompletableFuture<AsyncJPAStreamingAdmission.Permit> permit = CompletableFuture.supplyAsync(() -> {
+            AsyncJPAStreamingAdmission.Permit admittedPermit = admission.admit(group);
+            admitted.add(group);
+            return admittedPermit;
+        });
+        Thread.sleep(50); // waiting in order of arrival
+        return permit;
+    }
+
+}
@@ -0,0 +1,117 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingBroadcastTest {
+
+    @Test
+    void lateSubscriberReceivesReplayAndFollowingItems() {
+        AsyncJPAStreamingBroadcast<Integer> broadcast = new AsyncJPAStreamingBroadcast<>(10, unjoinable -> {});
+        Stream<Integer> first = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+
+        broadcast.offer(0);
+        broadcast.offer(1);
+        Stream<Integer> second = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+        broadcast.offer(2);
+        broadcast.close();
+
+        assertThat(first.toList()).containsExactly(0, 1, 2);
+        assertThat(second.toList()).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    void lateSubscriberWithSmallerBufferThanReplayDoesNotBlockProducer() throws Exception {
+        AsyncJPAStreamingBroadcast<Integer> broadcast = new AsyncJPAStreamingBroadcast<>(100, unjoinable -> {});
+        AsyncJPAStreamingBufferBudget budget = new AsyncJPAStreamingBufferBudget(100);
+        Stream<Integer> first = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(AsyncJPAStreamingBufferCapacity.adaptive(budget, 2, 4), 1));
+        CompletableFuture<List<Integer>> firstItems = CompletableFuture.supplyAsync(first::toList);
+        IntStream.range(0, 50).forEach(broadcast::offer);
+
+        // adaptive buffer of at most 4 entities, 50 replayed
+        Stream<Integer> second = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(AsyncJPAStreamingBufferCapacity.adaptive(budget, 2, 4), 1));
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            IntStream.range(50, 100).forEach(broadcast::offer);
+            broadcast.close();
+        });
+
+        List<Integer> expected = IntStream.range(0, 100).boxed().toList();
+        try (second) {
+            assertThat(second.toList()).isEqualTo(expected);
+        }
+        assertThat(firstItems.get(5, TimeUnit.SECONDS)).isEqualTo(expected);
+        producer.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void cannotBeJoinedAfterReplayCapacity() {
+        AtomicBoolean unjoinable = new AtomicBoolean();
+        AsyncJPAStreamingBroadcast<Integer> broadcast = new AsyncJPAStreamingBroadcast<>(2, b -> unjoinable.set(true));
+        Stream<Integer> first = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+
+        IntStream.range(0, 3).forEach(broadcast::offer);
+
+        assertThat(unjoinable).isTrue();
+        assertThat(broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1))).isNull();
+        broadcast.close();
+        assertThat(first.toList()).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    void producerIsCancelledWhenAllSubscribersLeft() {
+        AsyncJPAStreamingBroadcast<Integer> broadcast = new AsyncJPAStreamingBroadcast<>(10, unjoinable -> {});
+        Stream<Integer> first = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+        Stream<Integer> second = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+
+        first.close();
+        broadcast.offer(0);
+        assertThat(broadcast.getSubscriberCount()).isEqualTo(1);
+
+        second.close();
+        assertThatThrownBy(() -> broadcast.offer(1)).isInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+        assertThat(broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1))).isNull();
+    }
+
+    @Test
+    void producerWaitsForSlowestSubscriber() {
+        AsyncJPAStreamingBroadcast<Integer> broadcast = new AsyncJPAStreamingBroadcast<>(0, unjoinable -> {});
+        Stream<Integer> fast = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(2, 1));
+        Stream<Integer> slow = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(2, 1));
+        int count = 10_000;
+
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            IntStream.range(0, count).forEach(broadcast::offer);
+            broadcast.close();
+        });
+
+        CompletableFuture<Long> fastCount = CompletableFuture.supplyAsync(fast::count);
+        try (Stream<Integer> stream = slow) {
+            assertThat(stream.peek(item -> Thread.onSpinWait()).count()).isEqualTo(count);
+        }
+        assertThat(fastCount.join()).isEqualTo(count);
+        producer.join();
+    }
+
+    @Test
+    void errorIsPassedToAllSubscribers() {
+        AsyncJPAStreamingBroadcast<Integer> broadcast = new AsyncJPAStreamingBroadcast<>(10, unjoinable -> {});
+        Stream<Integer> first = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+        Stream<Integer> second = broadcast.join(() -> new AsyncJPAStreamingBuffer<>(100, 1));
+
+        broadcast.offer(0);
+        broadcast.addError(new IllegalStateException("failed"));
+
+        assertThatThrownBy(() -> first.toList()).hasMessage("failed");
+        assertThatThrownBy(() -> second.toList()).hasMessage("failed");
+    }
+
+}
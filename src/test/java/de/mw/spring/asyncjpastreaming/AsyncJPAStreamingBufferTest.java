@@ -0,0 +1,243 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingBufferTest {
+
+    @ParameterizedTest
+    @CsvSource({"1, 1", "10, 1", "10, 3", "1000, 100", "2147483647, 1", "2147483647, 500"})
+    void streamsAllItemsInOrder(int capacity, int chunkSize) {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(capacity, chunkSize);
+        int count = 100_000;
+
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < count; i++) {
+                buffer.offer(i);
+            }
+            buffer.close();
+        });
+
+        try (Stream<Integer> stream = buffer.stream()) {
+            AtomicInteger expected = new AtomicInteger();
+            stream.forEach(item -> assertThat(item).isEqualTo(expected.getAndIncrement()));
+            assertThat(expected).hasValue(count);
+        }
+    }
+
+    @Test
+    void producerWaitsWhileBufferIsFull() throws Exception {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(2, 1);
+        CountDownLatch offered = new CountDownLatch(3);
+
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 3; i++) {
+                buffer.offer(i);
+                offered.countDown();
+            }
+            buffer.close();
+        });
+
+        assertThat(offered.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(offered.getCount()).isEqualTo(1);
+        assertThat(buffer.stream().toList()).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    void errorIsThrownAfterBufferedItems() {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(10, 1);
+        buffer.offer(1);
+        buffer.addError(new IllegalStateException("connection lost"));
+
+        List<Integer> consumed = new ArrayList<>();
+        assertThatThrownBy(() -> buffer.stream().forEach(consumed::add))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("connection lost");
+        assertThat(consumed).containsExactly(1);
+    }
+
+    @Test
+    void checkedErrorIsWrapped() {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(10, 1);
+        buffer.addError(new Exception("failed"));
+
+        assertThatThrownBy(() -> buffer.stream().toList())
+                .isInstanceOf(AsyncJPAStreamingException.class)
+                .hasRootCauseMessage("failed");
+    }
+
+    @Test
+    void closingTheStreamStopsTheWaitingProducer() {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(1, 1);
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; ; i++) {
+                buffer.offer(i);
+            }
+        });
+
+        try (Stream<Integer> stream = buffer.stream()) {
+            assertThat(stream.limit(5).toList()).containsExactly(0, 1, 2, 3, 4);
+        }
+
+        assertThatThrownBy(() -> producer.get(1, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+    }
+
+    @Test
+    void abortStopsTheWaitingProducerAndFailsTheConsumer() {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(2, 1);
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; ; i++) {
+                buffer.offer(i);
+            }
+        });
+
+        try (Stream<Integer> stream = buffer.stream()) {
+            var iterator = stream.iterator();
+            assertThat(iterator.next()).isZero();
+
+            buffer.abort(new AsyncJPAStreamingTimeoutException("timed out"));
+            assertThatThrownBy(() -> producer.get(1, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+            assertThatThrownBy(iterator::hasNext) // without the buffered entities
+                    .isInstanceOf(AsyncJPAStreamingTimeoutException.class)
+                    .hasMessage("timed out");
+        }
+    }
+
+    @Test
+    void interruptedProducerStopsWaitingForTheConsumer() throws Exception {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(1, 1);
+        buffer.offer(1);
+
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        Thread producer = new Thread(() -> {
+            try {
+                buffer.offer(2);
+                interrupted.complete(false);
+            } catch (AsyncJPAStreamingException e) {
+                interrupted.complete(Thread.currentThread().isInterrupted());
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+        producer.interrupt();
+
+        assertThat(interrupted.get(1, TimeUnit.SECONDS)).as("keeps its interrupt status").isTrue();
+    }
+
+    @Test
+    void interruptedConsumerStopsWaitingForTheNextItem() throws Exception {
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(10, 1);
+
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        Thread consumer = new Thread(() -> {
+            try (Stream<Integer> consumed = buffer.stream()) {
+                consumed.iterator().hasNext();
+                interrupted.complete(false);
+            } catch (AsyncJPAStreamingException e) {
+                interrupted.complete(Thread.currentThread().isInterrupted());
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        consumer.interrupt();
+
+        assertThat(interrupted.get(1, TimeUnit.SECONDS)).as("keeps its interrupt status").isTrue();
+        assertThatThrownBy(() -> buffer.offer(1))
+                .as("closing the stream cancels the producer")
+                .isInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+    }
+
+    @Test
+    void cancelCancelsRegisteredQueryUntilItEnded() throws Exception {
+        ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(10, 1, new AsyncJPAStreamingQueryCancellation(retries));
+            AtomicInteger cancelled = new AtomicInteger();
+            buffer.cancelQueryWith(cancelled::incrementAndGet);
+
+            buffer.cancel();
+            buffer.cancel();
+            assertThat(cancelled).hasValueGreaterThanOrEqualTo(1);
+            Thread.sleep(250);
+            assertThat(cancelled).as("cancelled again, the statement may not have been executed").hasValueGreaterThanOrEqualTo(2);
+
+            assertThatThrownBy(() -> buffer.cancelQueryWith(cancelled::incrementAndGet))
+                    .as("no query is started for a closed stream")
+                    .isInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+            buffer.cancelQueryWith(null); // query ended
+            int cancels = cancelled.get();
+            Thread.sleep(250);
+            assertThat(cancelled).hasValue(cancels);
+        } finally {
+            retries.shutdownNow();
+        }
+    }
+
+    @Test
+    void capacityIsReservedFromTheGlobalBudget() throws Exception {
+        AsyncJPAStreamingBufferBudget budget = new AsyncJPAStreamingBufferBudget(3);
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(AsyncJPAStreamingBufferCapacity.fixed(budget, 100, 1), 1);
+        AsyncJPAStreamingBufferCapacity exhausted = AsyncJPAStreamingBufferCapacity.fixed(budget, 100, 1);
+        assertThat(exhausted.getCapacity()).isEqualTo(1); // minimum is always granted
+        exhausted.release();
+
+        CountDownLatch offered = new CountDownLatch(4);
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 4; i++) {
+                buffer.offer(i);
+                offered.countDown();
+            }
+            buffer.close();
+        });
+
+        assertThat(offered.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(offered.getCount()).isEqualTo(1);
+        assertThat(budget.getAvailable()).isZero();
+
+        try (Stream<Integer> stream = buffer.stream()) {
+            assertThat(stream.toList()).containsExactly(0, 1, 2, 3);
+        }
+        assertThat(budget.getAvailable()).isEqualTo(3);
+    }
+
+    @Test
+    void adaptiveCapacityFollowsTheWaitTimes() throws Exception {
+        AsyncJPAStreamingBufferBudget budget = new AsyncJPAStreamingBufferBudget(100);
+        AsyncJPAStreamingBufferCapacity capacity = AsyncJPAStreamingBufferCapacity.adaptive(budget, 10, 50);
+        assertThat(capacity.getCapacity()).isEqualTo(10);
+
+        long waited = TimeUnit.MILLISECONDS.toNanos(20);
+        Thread.sleep(110);
+        assertThat(capacity.adapt(waited, waited)).as("both sides waited").isEqualTo(20);
+        Thread.sleep(110);
+        assertThat(capacity.adapt(waited * 2, waited * 2)).isEqualTo(40);
+        Thread.sleep(110);
+        assertThat(capacity.adapt(waited * 3, waited * 3)).as("upper bound").isEqualTo(50);
+        assertThat(budget.getAvailable()).isEqualTo(50);
+
+        Thread.sleep(110);
+        assertThat(capacity.adapt(waited * 3 + TimeUnit.MILLISECONDS.toNanos(100), waited * 3)).as("consumer is slower").isEqualTo(25);
+        assertThat(budget.getAvailable()).isEqualTo(75);
+
+        capacity.release();
+        capacity.release();
+        assertThat(budget.getAvailable()).isEqualTo(100);
+    }
+
+}
@@ -0,0 +1,33 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingKeyRangeTest {
+
+    @Test
+    void splitsIntoConsecutiveRanges() {
+        assertThat(AsyncJPAStreamingKeyRange.closed(1, 10).split(3))
+                .containsExactly(new AsyncJPAStreamingKeyRange(1, 5),
+                                 new AsyncJPAStreamingKeyRange(5, 8),
+                                 new AsyncJPAStreamingKeyRange(8, 11));
+    }
+
+    @Test
+    void splitsIntoLessRangesThanKeys() {
+        assertThat(new AsyncJPAStreamingKeyRange(0, 2).split(4))
+                .containsExactly(new AsyncJPAStreamingKeyRange(0, 1),
+                                 new AsyncJPAStreamingKeyRange(1, 2));
+        assertThat(new AsyncJPAStreamingKeyRange(5, 5).split(4))
+                .containsExactly(new AsyncJPAStreamingKeyRange(5, 5));
+    }
+
+    @Test
+    void rejectsInvalidRange() {
+        assertThatThrownBy(() -> new AsyncJPAStreamingKeyRange(2, 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
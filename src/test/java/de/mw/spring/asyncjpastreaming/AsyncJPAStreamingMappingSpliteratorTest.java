@@ -0,0 +1,70 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingMappingSpliteratorTest {
+
+    @Test
+    void mapsInOrderOfTheSource() {
+        try (ExecutorService workers = Executors.newFixedThreadPool(4);
+             Stream<Integer> mapped = AsyncJPAStreamingMappingSpliterator.map(IntStream.range(0, 10_000).boxed(), i -> {
+                 if (ThreadLocalRandom.current().nextInt(100) == 0) {
+                     Thread.yield(); // batches finish out of order
+                 }
+                 return i * 2;
+             }, workers, 7, 8)) {
+            assertThat(mapped.toList()).isEqualTo(IntStream.range(0, 10_000).map(i -> i * 2).boxed().toList());
+        }
+    }
+
+    @Test
+    void mapsOnTheWorkers() {
+        try (ExecutorService workers = Executors.newFixedThreadPool(2, runnable -> new Thread(runnable, "worker"));
+             Stream<String> mapped = AsyncJPAStreamingMappingSpliterator.map(Stream.of(1, 2, 3), i -> Thread.currentThread().getName(),
+                                                                            workers, 2, 2)) {
+            assertThat(mapped.toList()).containsOnly("worker").hasSize(3);
+        }
+    }
+
+    @Test
+    void mappingErrorIsThrownToTheConsumer() {
+        try (ExecutorService workers = Executors.newFixedThreadPool(2);
+             Stream<Integer> mapped = AsyncJPAStreamingMappingSpliterator.map(IntStream.range(0, 100).boxed(), i -> {
+                 if (i == 50) {
+                     throw new IllegalStateException("mapping failed");
+                 }
+                 return i;
+             }, workers, 10, 2)) {
+            List<Integer> consumed = new ArrayList<>();
+            assertThatThrownBy(() -> mapped.forEach(consumed::add))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("mapping failed");
+            assertThat(consumed).containsExactlyElementsOf(IntStream.range(0, 50).boxed().toList());
+        }
+    }
+
+    @Test
+    void closingClosesTheSource() {
+        AtomicBoolean sourceClosed = new AtomicBoolean();
+        try (ExecutorService workers = Executors.newSingleThreadExecutor()) {
+            Stream<Integer> mapped = AsyncJPAStreamingMappingSpliterator.map(Stream.iterate(0, i -> i + 1).onClose(() -> sourceClosed.set(true)),
+                                                                             i -> i, workers, 10, 2);
+            assertThat(mapped.iterator().next()).isZero();
+            mapped.close();
+        }
+        assertThat(sourceClosed).isTrue();
+    }
+
+}
@@ -0,0 +1,54 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingMergingSpliteratorTest {
+
+    @Test
+    void mergesAllBuffers() {
+        AsyncJPAStreamingBuffer<Integer> first = new AsyncJPAStreamingBuffer<>(10, 1);
+        AsyncJPAStreamingBuffer<Integer> second = new AsyncJPAStreamingBuffer<>(10, 1);
+        first.offer(1);
+        second.offer(2);
+        first.offer(3);
+        first.close();
+        second.close();
+
+        try (Stream<Integer> merged = AsyncJPAStreamingMergingSpliterator.merge(List.of(first, second))) {
+            assertThat(merged).containsExactlyInAnyOrder(1, 2, 3);
+        }
+    }
+
+    @Test
+    void interruptedConsumerStopsWaitingForThePartitions() throws Exception {
+        AsyncJPAStreamingBuffer<Integer> first = new AsyncJPAStreamingBuffer<>(10, 1);
+        AsyncJPAStreamingBuffer<Integer> second = new AsyncJPAStreamingBuffer<>(10, 1);
+
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        Thread consumer = new Thread(() -> {
+            try (Stream<Integer> merged = AsyncJPAStreamingMergingSpliterator.merge(List.of(first, second))) {
+                merged.iterator().hasNext();
+                interrupted.complete(false);
+            } catch (AsyncJPAStreamingException e) {
+                interrupted.complete(Thread.currentThread().isInterrupted());
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        consumer.interrupt();
+
+        assertThat(interrupted.get(1, TimeUnit.SECONDS)).as("keeps its interrupt status").isTrue();
+        assertThatThrownBy(() -> second.offer(1))
+                .as("closing the stream cancels all producers")
+                .isInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+    }
+
+}
@@ -0,0 +1,102 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingPublisherTest {
+
+    @Test
+    void interruptedProducerEndsSubscriptionWithError() throws Exception {
+        AtomicReference<Thread> producer = new AtomicReference<>();
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        AsyncJPAStreamingPublisher<Integer> publisher = new AsyncJPAStreamingPublisher<>(sink -> {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; ; i++) {
+                        sink.offer(i);
+                    }
+                } catch (AsyncJPAStreamingSink.ClosedException e) {
+                    interrupted.complete(Thread.currentThread().isInterrupted());
+                } finally {
+                    sink.close();
+                }
+            });
+            producer.set(thread);
+            thread.start();
+        });
+
+        CompletableFuture<Throwable> error = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1); // no more demand, the producer waits
+            }
+
+            @Override
+            public void onNext(Integer item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.complete(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                error.complete(null);
+            }
+
+        });
+        Thread.sleep(100);
+        producer.get().interrupt();
+
+        assertThat(interrupted.get(1, TimeUnit.SECONDS)).as("keeps its interrupt status").isTrue();
+        assertThat(error.get(1, TimeUnit.SECONDS))
+                .isInstanceOf(AsyncJPAStreamingException.class)
+                .hasMessageContaining("Interrupted");
+    }
+
+    @Test
+    void interruptedConsumerCancelsSubscription() throws Exception {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flow.Publisher<Integer> silent = subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+            }
+
+        });
+
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        Thread consumer = new Thread(() -> {
+            try (Stream<Integer> stream = AsyncJPAStreamingPublisher.toStream(silent)) {
+                stream.iterator().hasNext();
+                interrupted.complete(false);
+            } catch (AsyncJPAStreamingException e) {
+                interrupted.complete(Thread.currentThread().isInterrupted());
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        consumer.interrupt();
+
+        assertThat(interrupted.get(1, TimeUnit.SECONDS)).as("keeps its interrupt status").isTrue();
+        assertThat(cancelled).isTrue();
+    }
+
+}
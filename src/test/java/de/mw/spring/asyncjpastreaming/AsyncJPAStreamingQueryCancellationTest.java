@@ -0,0 +1,27 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AsyncJPAStreamingQueryCancellationTest {
+
+    @Test
+    void cancelsOnceWhenSchedulerIsShutDown() throws Exception {
+        ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+        retries.shutdownNow();
+        AsyncJPAStreamingQueryCancellation cancellation = new AsyncJPAStreamingQueryCancellation(retries);
+        AtomicInteger cancelled = new AtomicInteger();
+        cancellation.register(cancelled::incrementAndGet);
+
+        cancellation.cancel();
+        Thread.sleep(250);
+
+        assertThat(cancelled).hasValue(1);
+    }
+
+}
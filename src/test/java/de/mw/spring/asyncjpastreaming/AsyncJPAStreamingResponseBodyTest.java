@@ -0,0 +1,97 @@
+package de.mw.spring.asyncjpastreaming;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingResponseBodyTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void writesJsonArray() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        AsyncJPAStreamingResponseBody.jsonArray(Stream.of(Map.of("id", 1), Map.of("id", 2)), objectMapper)
+                                     .writeTo(out);
+
+        assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo("[{\"id\":1},{\"id\":2}]");
+    }
+
+    @Test
+    void writesNdjson() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        AsyncJPAStreamingResponseBody.ndjson(Stream.of(Map.of("id", 1), Map.of("id", 2)), objectMapper)
+                                     .writeTo(out);
+
+        assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo("{\"id\":1}\n{\"id\":2}\n");
+    }
+
+    @Test
+    void flushesInBatches() throws IOException {
+        CountingOutputStream out = new CountingOutputStream(Integer.MAX_VALUE);
+
+        AsyncJPAStreamingResponseBody.ndjson(IntStream.range(0, 1000).boxed(), objectMapper)
+                                     .flushInterval(100)
+                                     .writeTo(out);
+
+        assertThat(out.flushes).isBetween(10, 11); // plus the final flush when closing the generator
+    }
+
+    @Test
+    void closesStreamWhenClientDisconnects() {
+        AtomicBoolean closed = new AtomicBoolean();
+        Stream<Integer> stream = Stream.iterate(0, i -> i + 1).onClose(() -> closed.set(true));
+
+        assertThatThrownBy(() -> AsyncJPAStreamingResponseBody.ndjson(stream, objectMapper)
+                                                              .flushInterval(1)
+                                                              .writeTo(new CountingOutputStream(1000)))
+                .isInstanceOf(IOException.class);
+        assertThat(closed).isTrue();
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final int maxBytes;
+
+        private int bytes;
+
+        private int flushes;
+
+        private CountingOutputStream(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            bytes += len;
+            if (bytes > maxBytes) {
+                throw new IOException("Broken pipe");
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+    }
+
+}
@@ -0,0 +1,140 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingShutdownTest {
+
+    @Test
+    void drainsRunningStreams() throws Exception {
+        AsyncJPAStreamingShutdown shutdown = new AsyncJPAStreamingShutdown(5000, 5000);
+        shutdown.start();
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(10, 1);
+        AsyncJPAStreamingShutdown.InFlight<Integer> stream = shutdown.track(buffer);
+
+        CompletableFuture<Void> stopped = CompletableFuture.runAsync(shutdown::stop);
+        Thread.sleep(100);
+        assertThat(stopped).isNotDone();
+        assertThat(shutdown.isRunning()).isTrue();
+
+        stream.offer(1);
+        stream.offer(2);
+        stream.close();
+        stream.ended();
+        stopped.get(5, TimeUnit.SECONDS);
+
+        assertThat(shutdown.isRunning()).isFalse();
+        try (Stream<Integer> consumed = buffer.stream()) {
+            assertThat(consumed).containsExactly(1, 2);
+        }
+    }
+
+    @Test
+    void rejectsNewStreamsWhileStopping() throws Exception {
+        AsyncJPAStreamingShutdown shutdown = new AsyncJPAStreamingShutdown(5000, 5000);
+        shutdown.start();
+        AsyncJPAStreamingShutdown.InFlight<Integer> running = shutdown.track(new AsyncJPAStreamingBuffer<>(10, 1));
+
+        CompletableFuture<Void> stopped = CompletableFuture.runAsync(shutdown::stop);
+        Thread.sleep(100);
+
+        assertThatThrownBy(() -> shutdown.track(new AsyncJPAStreamingBuffer<>(10, 1)))
+                .isInstanceOf(AsyncJPAStreamingRejectedException.class)
+                .hasMessageContaining("shutting down");
+
+        running.ended();
+        stopped.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void cancelsStreamsAfterDrainWindow() throws Exception {
+        AsyncJPAStreamingShutdown shutdown = new AsyncJPAStreamingShutdown(100, 5000);
+        shutdown.start();
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(10, 1);
+        AsyncJPAStreamingShutdown.InFlight<Integer> stream = shutdown.track(buffer);
+        AtomicInteger cancelled = new AtomicInteger();
+        stream.cancelQueryWith(cancelled::incrementAndGet);
+        stream.offer(1);
+
+        CompletableFuture<Void> stopped = CompletableFuture.runAsync(shutdown::stop);
+        long start = System.nanoTime();
+        while (cancelled.get() == 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(10);
+        }
+        assertThat(cancelled).hasPositiveValue();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(90);
+
+        // the async thread fails on its next entity or with the cancelled query
+        assertThatThrownBy(() -> stream.offer(2))
+                .isInstanceOf(AsyncJPAStreamingShutdownException.class);
+        stream.cancelQueryWith(null);
+        stream.close();
+        stream.ended();
+        stopped.get(5, TimeUnit.SECONDS);
+
+        // the consumer fails right away, without reading the buffered entities
+        try (Stream<Integer> consumed = buffer.stream()) {
+            assertThatThrownBy(() -> consumed.iterator().hasNext())
+                    .isInstanceOf(AsyncJPAStreamingShutdownException.class)
+                    .hasMessageContaining("shutting down");
+        }
+    }
+
+    @Test
+    void cancelsQueryOnceThroughWrappingSinks() throws Exception {
+        AsyncJPAStreamingShutdown shutdown = new AsyncJPAStreamingShutdown(0, 5000);
+        shutdown.start();
+        AsyncJPAStreamingShutdown.InFlight<Integer> stream = shutdown.track(new AsyncJPAStreamingBuffer<>(10, 1));
+        AtomicInteger cancelled = new AtomicInteger();
+        stream.cancelQueryWith(cancelled::incrementAndGet);
+
+        CompletableFuture<Void> stopped = CompletableFuture.runAsync(shutdown::stop);
+        long start = System.nanoTime();
+        while (cancelled.get() == 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+
+        assertThat(cancelled).as("registered with the buffer only").hasValue(1);
+        stream.cancelQueryWith(null);
+        stream.ended();
+        stopped.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void cancelWakesProducerWaitingForStalledConsumer() throws Exception {
+        AsyncJPAStreamingShutdown shutdown = new AsyncJPAStreamingShutdown(100, 5000);
+        shutdown.start();
+        AsyncJPAStreamingBuffer<Integer> buffer = new AsyncJPAStreamingBuffer<>(2, 1);
+        AsyncJPAStreamingShutdown.InFlight<Integer> stream = shutdown.track(buffer);
+
+        // the consumer stopped reading, the producer waits for capacity
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; ; i++) {
+                stream.offer(i);
+            }
+        });
+        producer.whenComplete((result, e) -> stream.ended());
+        Thread.sleep(100);
+        assertThat(producer).isNotDone();
+
+        long start = System.nanoTime();
+        shutdown.stop();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(2000);
+
+        assertThatThrownBy(() -> producer.get(1, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(AsyncJPAStreamingSink.ClosedException.class);
+        try (Stream<Integer> consumed = buffer.stream()) {
+            assertThatThrownBy(() -> consumed.iterator().hasNext())
+                    .isInstanceOf(AsyncJPAStreamingShutdownException.class);
+        }
+    }
+
+}
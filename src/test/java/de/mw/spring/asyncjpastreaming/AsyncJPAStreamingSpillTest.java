@@ -0,0 +1,128 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncJPAStreamingSpillTest {
+
+    /**
+     * Integers as 4 bytes, so records are 8 bytes including their length
+     */
+    private static final AsyncJPAStreamingSerializer INTEGERS = new AsyncJPAStreamingSerializer() {
+
+        @Override
+        public byte[] serialize(Object item) {
+            return ByteBuffer.allocate(4).putInt((Integer) item).array();
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+
+    };
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void producerFinishesWithoutConsumer() throws Exception {
+        AsyncJPAStreamingSpill<Integer> spill = new AsyncJPAStreamingSpill<>(new AsyncJPAStreamingBuffer<>(10, 1),
+                                                                             AsyncJPAStreamingSerializer.java(), 1024 * 1024, directory);
+        int count = 10_000;
+
+        CompletableFuture.runAsync(() -> {
+            IntStream.range(0, count).forEach(spill::offer);
+            spill.close();
+        }).get(5, TimeUnit.SECONDS);
+
+        assertThat(spill.size()).isEqualTo(count);
+        try (Stream<Integer> stream = spill.stream()) {
+            assertThat(stream.toList()).isEqualTo(IntStream.range(0, count).boxed().toList());
+        }
+    }
+
+    @Test
+    void producerWaitsWhileSpillIsFull() {
+        // 20 bytes do not hold a whole number of records, so records wrap around the end of the ring
+        AsyncJPAStreamingSpill<Integer> spill = new AsyncJPAStreamingSpill<>(new AsyncJPAStreamingBuffer<>(3, 1), INTEGERS, 20, directory);
+        int count = 100_000;
+
+        CompletableFuture.runAsync(() -> {
+            IntStream.range(0, count).forEach(spill::offer);
+            spill.close();
+        });
+
+        try (Stream<Integer> stream = spill.stream()) {
+            AtomicInteger expected = new AtomicInteger();
+            stream.forEach(item -> assertThat(item).isEqualTo(expected.getAndIncrement()));
+            assertThat(expected).hasValue(count);
+        }
+        assertThat(spill.getProducerWaitNanos()).isPositive();
+    }
+
+    @Test
+    void errorIsThrownAfterSpilledItems() {
+        AsyncJPAStreamingSpill<Integer> spill = new AsyncJPAStreamingSpill<>(new AsyncJPAStreamingBuffer<>(1, 1), INTEGERS, 1024, directory);
+        IntStream.range(0, 3).forEach(spill::offer);
+        spill.addError(new IllegalStateException("connection lost"));
+
+        List<Integer> consumed = new ArrayList<>();
+        assertThatThrownBy(() -> spill.stream().forEach(consumed::add))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("connection lost");
+        assertThat(consumed).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    void closingStreamCancelsWaitingProducer() throws Exception {
+        AsyncJPAStreamingSpill<Integer> spill = new AsyncJPAStreamingSpill<>(new AsyncJPAStreamingBuffer<>(1, 1), INTEGERS, 16, directory);
+        CountDownLatch cancelled = new CountDownLatch(1);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                IntStream.range(0, 100).forEach(spill::offer);
+            } catch (AsyncJPAStreamingSink.ClosedException e) {
+                cancelled.countDown();
+            }
+        });
+
+        try (Stream<Integer> stream = spill.stream()) {
+            assertThat(stream.findFirst()).contains(0);
+        }
+        assertThat(cancelled.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void waitsForConsumerWhenSpillFileCannotBeCreated() throws Exception {
+        AsyncJPAStreamingSpill<Integer> spill = new AsyncJPAStreamingSpill<>(new AsyncJPAStreamingBuffer<>(2, 1), INTEGERS, 1024,
+                                                                             directory.resolve("missing"));
+        CountDownLatch offered = new CountDownLatch(3);
+
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 3; i++) {
+                spill.offer(i);
+                offered.countDown();
+            }
+            spill.close();
+        });
+
+        assertThat(offered.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(spill.stream().toList()).containsExactly(0, 1, 2);
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.mw.spring.asyncjpastreaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AsyncJPAStreamingSubmissionOrderGateTest {
+
+    @Test
+    void startsInSubmissionOrderRegardlessOfArrival() throws Exception {
+        AsyncJPAStreamingTransactionSupport.SubmissionOrderGate gate = new AsyncJPAStreamingTransactionSupport.SubmissionOrderGate(1);
+        CountDownLatch blocking = new CountDownLatch(1);
+        List<String> started = new CopyOnWriteArrayList<>();
+
+        Thread running = Thread.ofVirtual().start(gate.decorate(() -> await(blocking)));
+        Runnable first = gate.decorate(() -> started.add("first"));
+        Runnable second = gate.decorate(() -> started.add("second"));
+
+        // the second task arrives at the gate first
+        Thread secondThread = Thread.ofVirtual().start(second);
+        awaitWaiting(secondThread);
+        Thread firstThread = Thread.ofVirtual().start(first);
+        awaitWaiting(firstThread);
+
+        blocking.countDown();
+        for (Thread thread : List.of(running, firstThread, secondThread)) {
+            assertThat(thread.join(Duration.ofSeconds(5))).isTrue();
+        }
+        assertThat(started).containsExactly("first", "second");
+    }
+
+    @Test
+    void limitsRunningTasks() throws Exception {
+        AsyncJPAStreamingTransactionSupport.SubmissionOrderGate gate = new AsyncJPAStreamingTransactionSupport.SubmissionOrderGate(2);
+        CountDownLatch blocking = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            threads.add(Thread.ofVirtual().start(gate.decorate(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                await(blocking);
+                running.decrementAndGet();
+            })));
+        }
+        Thread.sleep(100);
+        assertThat(running).hasValue(2);
+
+        blocking.countDown();
+        for (Thread thread : threads) {
+            assertThat(thread.join(Duration.ofSeconds(5))).isTrue();
+        }
+        assertThat(maxRunning).hasValue(2);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(thread.getState()).isEqualTo(Thread.State.WAITING);
+    }
+
+}
@@ -0,0 +1,68 @@
+package de.mw.spring.example;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyRange;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingRejectedException;
+import de.mw.spring.example.app.Person;
+import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:admission;DB_CLOSE_DELAY=-1",
+                              "spring.datasource.hikari.maximum-pool-size=3",
+                              "app.configuration.asyncjpastreaming.admission.enabled=true",
+                              "app.configuration.asyncjpastreaming.admission.reservedConnections=1",
+                              "app.configuration.asyncjpastreaming.admission.maxWaitMillis=200"})
+class ExampleApplicationAdmissionIntegrationTest {
+
+    @Autowired
+    private PersonRepository personRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @Test
+    void testStreamsExceedingPoolShareAreRejected() throws Exception {
+        try (Stream<Long> first = personService.streamSlowQuery();
+             Stream<Long> second = personService.streamSlowQuery()) {
+            long start = System.nanoTime();
+            assertThatThrownBy(personService::streamSlowQuery)
+                    .isInstanceOf(AsyncJPAStreamingRejectedException.class)
+                    .hasMessageContaining("PersonService.streamSlowQuery");
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(2000);
+
+            assertThat(personRepository.count()).as("reserved connection is available").isZero();
+        }
+
+        // admitted again once the closed streams cancelled their queries and released their connections
+        Thread.sleep(100);
+        try (Stream<Long> first = personService.streamSlowQuery();
+             Stream<Long> second = personService.streamSlowQuery()) {
+            assertThat(personRepository.count()).isZero();
+        }
+    }
+
+    @Test
+    void testPartitionsAreLimitedToPoolShare() {
+        // more persons per partition than fit into its buffer, the partitions keep their connections until consumed
+        personRepository.saveAll(IntStream.range(0, 4000).mapToObj(i -> new Person("John Doe " + i)).toList());
+        try {
+            var range = AsyncJPAStreamingKeyRange.closed(personRepository.findMinId(), personRepository.findMaxId());
+            // 4 partitions requested, 2 connections for streams
+            try (Stream<Person> stream = personService.streamPersonsPartitioned(range)) {
+                assertThat(stream).hasSize(4000);
+            }
+        } finally {
+            personRepository.deleteAllInBatch();
+        }
+    }
+
+}
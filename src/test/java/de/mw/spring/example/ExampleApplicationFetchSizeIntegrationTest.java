@@ -0,0 +1,177 @@
+package de.mw.spring.example;
+
+import com.zaxxer.hikari.HikariDataSource;
+import de.mw.spring.example.app.Person;
+import de.mw.spring.example.app.PersonDto;
+import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:fetchsize;DB_CLOSE_DELAY=-1",
+                              "spring.jpa.properties.hibernate.jdbc.fetch_size=500", // replaced, differs from the hints of 1000
+                              "app.configuration.asyncjpastreaming.fetchSize.adaptive=true"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ExampleApplicationFetchSizeIntegrationTest {
+
+    private final static int COUNT = 2000;
+
+    @Autowired
+    private PersonRepository personRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    void setUp() {
+        for (int i = 0; i < COUNT; i++) {
+            personRepository.save(new Person("John Doe " + i));
+        }
+    }
+
+    @Test
+    void testSlowConsumerReducesFetchSize() throws Exception {
+        try (Stream<Person> stream = personService.streamAllPersonsWithoutFetchSize()) {
+            Iterator<Person> iterator = stream.iterator();
+            for (int i = 0; i < 500; i++) {
+                assertThat(iterator.next().getName()).startsWith("John Doe");
+                Thread.sleep(1);
+            }
+        }
+
+        assertThat(await(() -> fetchSize("PersonService.streamAllPersonsWithoutFetchSize") != null)).as("learned when the async thread ended").isTrue();
+        assertThat(fetchSize("PersonService.streamAllPersonsWithoutFetchSize"))
+                .satisfies(gauge -> assertThat(gauge.value()).isBetween(10.0, 50.0)); // buffer capacity 100 halved at least once
+    }
+
+    @Test
+    void testStreamedQueryIsExecutedWithTunedFetchSize() throws Exception {
+        RecordingDataSource.EXECUTED.clear();
+        try (Stream<Person> stream = personService.streamAllPersonsAfterLookup()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+
+        assertThat(await(() -> fetchSize("PersonService.streamAllPersonsAfterLookup") != null)).as("learned when the async thread ended").isTrue();
+        assertThat(RecordingDataSource.EXECUTED)
+                .as("buffer capacity instead of the default fetch size of Hibernate")
+                .anySatisfy(query -> assertThat(query).contains(" order by ").endsWith("fetch size 50"));
+    }
+
+    @Test
+    void testRowStreamLearnsFetchSize() throws Exception {
+        try (Stream<PersonDto> stream = personService.streamAllPersonRows()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+
+        assertThat(await(() -> fetchSize("PersonService.streamAllPersonRows") != null)).as("learned when the async thread ended").isTrue();
+        assertThat(fetchSize("PersonService.streamAllPersonRows"))
+                .satisfies(gauge -> assertThat(gauge.value()).isBetween(10.0, 10000.0));
+    }
+
+    @Test
+    void testFetchSizeHintIsKept() throws Exception {
+        try (Stream<Person> stream = personService.streamAllPersonsDetached()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+
+        assertThat(await(() -> meterRegistry.get("asyncjpastreaming.streams.active").tag("method", "PersonService.streamAllPersonsDetached")
+                                            .gauge().value() == 0)).isTrue();
+        assertThat(fetchSize("PersonService.streamAllPersonsDetached")).isNull();
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    private Gauge fetchSize(String method) {
+        return meterRegistry.find("asyncjpastreaming.fetch.size").tag("method", method).gauge();
+    }
+
+    @TestConfiguration
+    static class MetricsConfiguration {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        @ConfigurationProperties("spring.datasource.hikari")
+        HikariDataSource dataSource(DataSourceProperties properties) {
+            return properties.initializeDataSourceBuilder().type(RecordingDataSource.class).build();
+        }
+
+    }
+
+    /**
+     * Records the queries executed by the async threads with the fetch size of their statement
+     */
+    public static class RecordingDataSource extends HikariDataSource {
+
+        static final Queue<String> EXECUTED = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            Connection connection = super.getConnection();
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                Object result = invoke(connection, method, args);
+                if (result instanceof PreparedStatement statement && method.getName().equals("prepareStatement")) {
+                    return recording(statement, (String) args[0]);
+                }
+                return result;
+            });
+        }
+
+        private static PreparedStatement recording(PreparedStatement statement, String sql) {
+            return (PreparedStatement) Proxy.newProxyInstance(RecordingDataSource.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                if (method.getName().equals("executeQuery") && Thread.currentThread().getName().startsWith("asyncJPA-")) {
+                    EXECUTED.add(sql + " fetch size " + statement.getFetchSize());
+                }
+                return invoke(statement, method, args);
+            });
+        }
+
+        private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+
+    }
+
+}
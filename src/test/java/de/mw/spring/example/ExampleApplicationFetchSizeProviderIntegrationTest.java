@@ -0,0 +1,64 @@
+package de.mw.spring.example;
+
+import de.mw.spring.example.app.Person;
+import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:fetchsizeprovider;DB_CLOSE_DELAY=-1",
+                              "spring.jpa.properties.hibernate.connection.provider_class=org.hibernate.engine.jdbc.connections.internal.DatasourceConnectionProviderImpl",
+                              "app.configuration.asyncjpastreaming.fetchSize.adaptive=true"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ExampleApplicationFetchSizeProviderIntegrationTest {
+
+    private final static int COUNT = 1000;
+
+    @Autowired
+    private PersonRepository personRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    void setUp() {
+        for (int i = 0; i < COUNT; i++) {
+            personRepository.save(new Person("John Doe " + i));
+        }
+    }
+
+    @Test
+    void testConfiguredConnectionProviderIsKept() throws Exception {
+        try (Stream<Person> stream = personService.streamAllPersonsWithoutFetchSize()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+
+        Thread.sleep(100); // learned when the async thread ended
+        assertThat(meterRegistry.find("asyncjpastreaming.fetch.size").gauges()).as("adaptive fetch size disabled").isEmpty();
+    }
+
+    @TestConfiguration
+    static class MetricsConfiguration {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+    }
+
+}
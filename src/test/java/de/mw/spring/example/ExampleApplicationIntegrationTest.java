@@ -1,16 +1,43 @@
 package de.mw.spring.example;
 
+import com.zaxxer.hikari.HikariDataSource;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyRange;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyset;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingTimeoutException;
+import de.mw.spring.example.app.Address;
+import de.mw.spring.example.app.AddressRepository;
 import de.mw.spring.example.app.Person;
 import de.mw.spring.example.app.PersonDto;
+import de.mw.spring.example.app.PersonReportService;
 import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hibernate.Hibernate;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.reactivestreams.Subscription;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.annotation.Bean;
+import reactor.core.publisher.BaseSubscriber;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -18,16 +45,37 @@ class ExampleApplicationIntegrationTest {
 
     private final static int COUNT = 10000;
 
+    private final static int PERSONS_WITH_ADDRESSES = 100;
+
     @Autowired
     private PersonRepository personRepository;
 
+    @Autowired
+    private AddressRepository addressRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @Autowired
+    private PersonReportService personReportService;
+
+    @Autowired
+    private HikariDataSource dataSource;
+
     @Autowired
     private TestRestTemplate restTemplate;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @BeforeAll
     void setUp() {
         for (int i = 0; i < COUNT; i++) {
-            personRepository.save(new Person("John Doe " + i));
+            Person person = personRepository.save(new Person("John Doe " + i));
+            if (i < PERSONS_WITH_ADDRESSES) {
+                addressRepository.save(new Address(person, "Main Street " + i));
+                addressRepository.save(new Address(person, "Second Street " + i));
+            }
         }
     }
 
@@ -41,4 +89,400 @@ class ExampleApplicationIntegrationTest {
                 .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
     }
 
-}
\ No newline at end of file
+    @RepeatedTest(20)
+    void testAsyncStreamingChunked() {
+        var response = restTemplate.getForObject("/persons/chunked", PersonDto[].class);
+
+
+        assertThat(response)
+                .hasSize(COUNT)
+                .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
+    }
+
+    @RepeatedTest(20)
+    void testAsyncPublisher() {
+        var response = restTemplate.getForObject("/persons/flux", PersonDto[].class);
+
+
+        assertThat(response)
+                .hasSize(COUNT)
+                .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
+    }
+
+    @RepeatedTest(5)
+    void testJsonArrayResponseBody() {
+        var response = restTemplate.getForObject("/persons/json", PersonDto[].class);
+
+        assertThat(response)
+                .hasSize(COUNT)
+                .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
+    }
+
+    @RepeatedTest(5)
+    void testNdjsonResponseBody() {
+        var response = restTemplate.getForEntity("/persons/ndjson", String.class);
+
+        assertThat(response.getHeaders().getContentType()).hasToString("application/x-ndjson");
+        assertThat(response.getBody().split("\n"))
+                .hasSize(COUNT)
+                .allSatisfy(line -> assertThat(line).startsWith("{\"name\":\"John Doe"));
+    }
+
+    @Test
+    void testPublisherDemandAndCancellation() throws Exception {
+        List<PersonDto> received = new CopyOnWriteArrayList<>();
+        CountDownLatch demandFulfilled = new CountDownLatch(10);
+        BaseSubscriber<PersonDto> subscriber = new BaseSubscriber<>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                subscription.request(10);
+            }
+
+            @Override
+            protected void hookOnNext(PersonDto person) {
+                received.add(person);
+                demandFulfilled.countDown();
+            }
+        };
+
+        personService.publishAllPersons().subscribe(subscriber);
+
+        assertThat(demandFulfilled.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(100);
+        assertThat(received).hasSize(10); // nothing beyond the demand
+
+        subscriber.cancel();
+        assertThat(awaitNoActiveConnections()).isTrue();
+        assertThat(await(() -> meterRegistry.find("asyncjpastreaming.stream.duration")
+                                            .tags("method", "PersonService.publishAllPersons", "outcome", "cancelled")
+                                            .timers().stream().anyMatch(timer -> timer.count() > 0))).isTrue();
+    }
+
+    @RepeatedTest(5)
+    void testPartitionedStreaming() {
+        var range = AsyncJPAStreamingKeyRange.closed(personRepository.findMinId(), personRepository.findMaxId());
+
+        try (Stream<Person> stream = personService.streamPersonsPartitioned(range)) {
+            assertThat(stream.map(Person::getId))
+                    .hasSize(COUNT)
+                    .doesNotHaveDuplicates();
+        }
+    }
+
+    @RepeatedTest(5)
+    void testPartitionedStreamingOrdered() {
+        var range = AsyncJPAStreamingKeyRange.closed(personRepository.findMinId(), personRepository.findMaxId());
+
+        try (Stream<Person> stream = personService.streamPersonsPartitionedOrdered(range)) {
+            assertThat(stream.map(Person::getId).toList())
+                    .hasSize(COUNT)
+                    .isSorted();
+        }
+    }
+
+    @Test
+    void testPartitionedStreamingClosedEarly() throws Exception {
+        var range = AsyncJPAStreamingKeyRange.closed(personRepository.findMinId(), personRepository.findMaxId());
+
+        try (Stream<Person> stream = personService.streamPersonsPartitioned(range)) {
+            assertThat(stream.limit(10)).hasSize(10);
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testMappedStreaming() {
+        try (Stream<PersonDto> stream = personService.streamAllPersonsMapped()) {
+            assertThat(stream)
+                    .hasSize(COUNT)
+                    .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
+        }
+    }
+
+    @Test
+    void testMappedStreamingPreservesOrder() {
+        var range = AsyncJPAStreamingKeyRange.closed(personRepository.findMinId(), personRepository.findMaxId());
+
+        try (Stream<String> stream = personService.streamPersonIdsMapped(range)) {
+            List<String[]> idsAndThreads = stream.map(idAndThread -> idAndThread.split(" ")).toList();
+            assertThat(idsAndThreads)
+                    .hasSize(COUNT)
+                    .extracting(idAndThread -> Long.parseLong(idAndThread[0]))
+                    .isSorted();
+            assertThat(idsAndThreads)
+                    .extracting(idAndThread -> idAndThread[1])
+                    .allSatisfy(thread -> assertThat(thread).startsWith("asyncJPA-map-"));
+        }
+    }
+
+    @Test
+    void testPersistenceContextStrategies() {
+        try (Stream<Person> stream = personService.streamAllPersonsDetached()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+        try (Stream<PersonDto> stream = personService.streamAllPersonDtosDetached()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+        try (Stream<PersonDto> stream = personService.streamAllPersonsCleared()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+    }
+
+    @Test
+    void testPrefetchedAssociations() {
+        List<Person> persons;
+        try (Stream<Person> stream = personService.streamAllPersonsWithAddresses()) {
+            persons = stream.toList();
+        }
+
+        // the transaction has ended, the addresses were initialized in it
+        assertThat(persons)
+                .hasSize(COUNT)
+                .allSatisfy(person -> assertThat(Hibernate.isInitialized(person.getAddresses())).isTrue());
+        assertThat(persons.stream().filter(person -> !person.getAddresses().isEmpty()))
+                .hasSize(PERSONS_WITH_ADDRESSES)
+                .allSatisfy(person -> assertThat(person.getAddresses())
+                        .extracting(Address::getStreet)
+                        .allSatisfy(street -> assertThat(street).endsWith(" " + person.getName().substring("John Doe ".length()))));
+    }
+
+    @Test
+    void testStatelessStreaming() throws Exception {
+        try (Stream<Person> stream = personService.streamAllPersonsStateless()) {
+            assertThat(stream.map(Person::getName).toList())
+                    .hasSize(COUNT)
+                    .allSatisfy(name -> assertThat(name).startsWith("John Doe"));
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testProjectionStreaming() throws Exception {
+        try (Stream<PersonDto> stream = personService.streamAllPersonsProjected()) {
+            assertThat(stream.map(PersonDto::getName).toList())
+                    .hasSize(COUNT)
+                    .allSatisfy(name -> assertThat(name).startsWith("John Doe"));
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testRowStreaming() throws Exception {
+        try (Stream<PersonDto> stream = personService.streamAllPersonRows()) {
+            assertThat(stream.map(PersonDto::getName).toList())
+                    .hasSize(COUNT)
+                    .allSatisfy(name -> assertThat(name).startsWith("John Doe"));
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testKeysetStreaming() {
+        try (Stream<Person> stream = personService.streamPersonsKeyset(personService.personKeyset(500))) {
+            assertThat(stream.map(Person::getId).toList())
+                    .hasSize(COUNT)
+                    .isSorted()
+                    .doesNotHaveDuplicates();
+        }
+    }
+
+    @Test
+    void testKeysetStreamingResume() throws Exception {
+        AsyncJPAStreamingKeyset<Person, Long> keyset = personService.personKeyset(500);
+        List<Long> firstIds;
+        try (Stream<Person> stream = personService.streamPersonsKeyset(keyset)) {
+            var iterator = stream.iterator();
+            firstIds = Stream.generate(iterator::next).limit(1234).map(Person::getId).toList();
+            assertThat(awaitNoActiveConnections()).as("connection released while the consumer pauses").isTrue();
+        }
+        Long resumeToken = keyset.getLastKey();
+        assertThat(resumeToken).isEqualTo(firstIds.getLast());
+
+        try (Stream<Person> stream = personService.streamPersonsKeyset(personService.personKeyset(500).resumeAfter(resumeToken))) {
+            List<Long> remainingIds = stream.map(Person::getId).toList();
+            assertThat(remainingIds).hasSize(COUNT - 1234);
+            assertThat(remainingIds.getFirst()).isGreaterThan(resumeToken);
+        }
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        try (Stream<PersonDto> stream = personService.streamAllPersonsChunked()) {
+            assertThat(stream).hasSize(COUNT);
+        }
+
+        String[] tags = {"method", "PersonService.streamAllPersonsChunked"};
+        assertThat(await(() -> meterRegistry.get("asyncjpastreaming.streams.active").tags(tags).gauge().value() == 0)).isTrue();
+        assertThat(meterRegistry.get("asyncjpastreaming.stream.rows").tags(tags).counter().count()).isGreaterThanOrEqualTo(COUNT);
+        assertThat(meterRegistry.get("asyncjpastreaming.stream.first").tags(tags).timer().count()).isPositive();
+        assertThat(meterRegistry.get("asyncjpastreaming.stream.duration").tags(tags).tag("outcome", "completed").timer().count()).isPositive();
+        assertThat(meterRegistry.get("asyncjpastreaming.buffer.size").tags(tags).gauge().value()).isZero();
+        assertThat(meterRegistry.get("asyncjpastreaming.producer.blocked").tags(tags).functionCounter().count()).isNotNegative();
+        assertThat(meterRegistry.get("asyncjpastreaming.consumer.starved").tags(tags).functionCounter().count()).isPositive();
+    }
+
+    @Test
+    void testSpillingReleasesConnectionBeforeConsumed() throws Exception {
+        try (Stream<PersonDto> stream = personService.streamAllPersonsSpilled()) {
+            Iterator<PersonDto> iterator = stream.iterator();
+            assertThat(iterator.next().getName()).startsWith("John Doe");
+
+            assertThat(awaitNoActiveConnections()).isTrue(); // query finished, the rest was spilled
+
+            int count = 1;
+            for (; iterator.hasNext(); count++) {
+                assertThat(iterator.next().getName()).startsWith("John Doe");
+            }
+            assertThat(count).isEqualTo(COUNT);
+        }
+    }
+
+    @Test
+    void testNestedStreamJoinsOuterTransaction() throws Exception {
+        try (Stream<String> stream = personReportService.streamNestedJoined()) {
+            assertThat(stream)
+                    .hasSize(COUNT)
+                    .allSatisfy(threads -> {
+                        String[] outerAndNested = threads.split(" ");
+                        assertThat(outerAndNested[0]).startsWith("asyncJPA-");
+                        assertThat(outerAndNested[1]).isEqualTo(outerAndNested[0]);
+                    });
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testNestedStreamWithOwnConnection() throws Exception {
+        try (Stream<String> stream = personReportService.streamNestedOwnConnection()) {
+            assertThat(stream)
+                    .hasSize(COUNT)
+                    .allSatisfy(threads -> {
+                        String[] outerAndNested = threads.split(" ");
+                        assertThat(outerAndNested[0]).startsWith("asyncJPA-");
+                        assertThat(outerAndNested[1]).startsWith("asyncJPA-").isNotEqualTo(outerAndNested[0]);
+                    });
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testThreadNamedLikeStreamingThreadIsNotNested() throws Exception {
+        CompletableFuture<List<String>> threads = new CompletableFuture<>();
+        Thread.ofVirtual().name("asyncJPA-caller").start(() -> {
+            try (Stream<String> stream = personService.streamQueryThreads()) {
+                threads.complete(stream.distinct().toList());
+            } catch (RuntimeException e) {
+                threads.completeExceptionally(e);
+            }
+        });
+
+        assertThat(threads.get(5, TimeUnit.SECONDS))
+                .singleElement()
+                .asString()
+                .startsWith("asyncJPA-")
+                .isNotEqualTo("asyncJPA-caller");
+    }
+
+    @Test
+    void testSharedStreaming() throws Exception {
+        try (Stream<PersonDto> first = personService.streamPersonsShared("report");
+             Stream<PersonDto> joined = personService.streamPersonsShared("report");
+             Stream<PersonDto> other = personService.streamPersonsShared("other report")) {
+            CompletableFuture<Long> joinedCount = CompletableFuture.supplyAsync(joined::count);
+            CompletableFuture<Long> otherCount = CompletableFuture.supplyAsync(other::count);
+
+            assertThat(first).hasSize(COUNT);
+            assertThat(joinedCount.get()).isEqualTo(COUNT);
+            assertThat(otherCount.get()).isEqualTo(COUNT);
+        }
+
+        String[] tags = {"method", "PersonService.streamPersonsShared"};
+        assertThat(await(() -> meterRegistry.get("asyncjpastreaming.streams.active").tags(tags).gauge().value() == 0)).isTrue();
+        assertThat(meterRegistry.get("asyncjpastreaming.stream.duration").tags(tags).timers()
+                                .stream()
+                                .mapToLong(Timer::count)
+                                .sum()).isEqualTo(2); // one query for both identical calls
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testTimeoutCancelsQuery() throws Exception {
+        long start = System.nanoTime();
+        try (Stream<Long> stream = personService.streamSlowQueryWithTimeout()) {
+            assertThatThrownBy(stream::count)
+                    .isInstanceOf(AsyncJPAStreamingTimeoutException.class)
+                    .hasMessageContaining("200 ms");
+        }
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(5);
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testTimeoutStopsStreamWaitingForStalledConsumer() throws Exception {
+        try (Stream<PersonDto> stream = personService.streamAllPersonsWithTimeout()) {
+            Iterator<PersonDto> iterator = stream.iterator();
+            assertThat(iterator.next().getName()).startsWith("John Doe");
+
+            // the consumer stalls while the async thread waits for buffer space
+            assertThat(awaitNoActiveConnections()).as("connection released by the timeout").isTrue();
+            assertThatThrownBy(iterator::hasNext)
+                    .isInstanceOf(AsyncJPAStreamingTimeoutException.class)
+                    .hasMessageContaining("300 ms");
+        }
+    }
+
+    @Test
+    void testIdleTimeoutCancelsQuery() throws Exception {
+        try (Stream<Long> stream = personService.streamSlowQueryWithIdleTimeout()) {
+            assertThatThrownBy(stream::count)
+                    .isInstanceOf(AsyncJPAStreamingTimeoutException.class)
+                    .hasMessageContaining("idle timeout");
+        }
+        assertThat(awaitNoActiveConnections()).isTrue();
+    }
+
+    @Test
+    void testClosingStreamCancelsQuery() throws Exception {
+        Stream<Long> stream = personService.streamSlowQuery();
+        assertThat(await(() -> dataSource.getHikariPoolMXBean().getActiveConnections() > 0)).isTrue();
+        Thread.sleep(100); // query is running
+
+        stream.close();
+        assertThat(awaitNoActiveConnections()).as("connection released without waiting for the query").isTrue();
+    }
+
+    @Test
+    void testClosingRowStreamCancelsQuery() throws Exception {
+        Stream<Long> stream = personService.streamSlowQueryRows();
+        assertThat(await(() -> dataSource.getHikariPoolMXBean().getActiveConnections() > 0)).isTrue();
+        Thread.sleep(100); // query is running
+
+        stream.close();
+        assertThat(awaitNoActiveConnections()).as("connection released without waiting for the query").isTrue();
+    }
+
+    private boolean awaitNoActiveConnections() throws InterruptedException {
+        return await(() -> dataSource.getHikariPoolMXBean().getActiveConnections() == 0);
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    @TestConfiguration
+    static class MetricsConfiguration {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+    }
+
+}
@@ -0,0 +1,57 @@
+package de.mw.spring.example;
+
+import com.zaxxer.hikari.HikariDataSource;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingRejectedException;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingShutdownException;
+import de.mw.spring.example.app.PersonService;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Closes its own application context, which is not shared with other tests.
+ */
+class ExampleApplicationShutdownIntegrationTest {
+
+    @Test
+    void testShutdownCancelsStreamsAfterDrainWindow() throws Exception {
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(ExampleApplication.class)
+                .properties("server.port=0",
+                            "spring.datasource.url=jdbc:h2:mem:shutdown;DB_CLOSE_DELAY=-1",
+                            "app.configuration.asyncjpastreaming.shutdown.drainMillis=500")
+                .run();
+        PersonService personService = context.getBean(PersonService.class);
+        HikariDataSource dataSource = context.getBean(HikariDataSource.class);
+
+        Stream<Long> running = personService.streamSlowQuery();
+        CompletableFuture<Long> consumed = CompletableFuture.supplyAsync(() -> {
+            try (running) {
+                return running.count();
+            }
+        });
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(context::close);
+        Thread.sleep(100);
+        assertThatThrownBy(personService::streamSlowQuery)
+                .isInstanceOf(AsyncJPAStreamingRejectedException.class)
+                .hasMessageContaining("shutting down");
+        assertThat(consumed).as("drain window").isNotDone();
+
+        assertThatThrownBy(() -> consumed.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(AsyncJPAStreamingShutdownException.class);
+        closed.get(10, TimeUnit.SECONDS);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isBetween(500L, 5000L);
+        assertThat(dataSource.isClosed()).isTrue();
+    }
+
+}
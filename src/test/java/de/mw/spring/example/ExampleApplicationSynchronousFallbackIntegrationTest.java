@@ -0,0 +1,117 @@
+package de.mw.spring.example;
+
+import com.zaxxer.hikari.HikariDataSource;
+import de.mw.spring.example.app.Person;
+import de.mw.spring.example.app.PersonDto;
+import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                properties = {"spring.datasource.url=jdbc:h2:mem:synchronousfallback;DB_CLOSE_DELAY=-1",
+                              "app.configuration.asyncjpastreaming.enabled=false",
+                              "app.configuration.asyncjpastreaming.fallback=STREAM"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ExampleApplicationSynchronousFallbackIntegrationTest {
+
+    private final static int COUNT = 1000;
+
+    @Autowired
+    private PersonRepository personRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private HikariDataSource dataSource;
+
+    @BeforeAll
+    void setUp() {
+        for (int i = 0; i < COUNT; i++) {
+            personRepository.save(new Person("John Doe " + i));
+        }
+    }
+
+    @Test
+    void testStreamingInCallingThread() {
+        var response = restTemplate.getForObject("/persons/chunked", PersonDto[].class);
+
+        assertThat(response)
+                .hasSize(COUNT)
+                .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
+    }
+
+    @Test
+    void testTransactionLastsUntilStreamIsClosed() {
+        assertThat(TransactionSynchronizationManager.isActualTransactionActive()).isFalse();
+
+        try (Stream<Person> persons = personService.streamAllPersonsDetached()) {
+            Iterator<Person> iterator = persons.iterator();
+            Person first = iterator.next();
+
+            assertThat(first.getName()).startsWith("John Doe");
+            assertThat(TransactionSynchronizationManager.isActualTransactionActive()).isTrue();
+            assertThat(entityManager.contains(first)).isFalse();
+
+            int count = 1;
+            for (; iterator.hasNext(); count++) {
+                assertThat(entityManager.contains(iterator.next())).isFalse();
+            }
+            assertThat(count).isEqualTo(COUNT);
+        }
+
+        assertThat(TransactionSynchronizationManager.isActualTransactionActive()).isFalse();
+    }
+
+    @Test
+    void testTransactionEndsWhenClosedEarly() {
+        try (Stream<PersonDto> persons = personService.streamAllPersonsCleared()) {
+            assertThat(persons.limit(10)).hasSize(10);
+        }
+
+        assertThat(TransactionSynchronizationManager.isActualTransactionActive()).isFalse();
+    }
+
+    @Test
+    void testTransactionIsRolledBackWhenIterationFails() {
+        AtomicInteger completion = new AtomicInteger(-1);
+
+        try (Stream<Person> persons = personService.streamAllPersonsDetached()) {
+            assertThatThrownBy(() -> persons.forEach(person -> {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        completion.set(status);
+                    }
+                });
+                throw new IllegalStateException("failed consumer");
+            })).isInstanceOf(IllegalStateException.class);
+        }
+
+        assertThat(completion).hasValue(TransactionSynchronization.STATUS_ROLLED_BACK);
+        assertThat(TransactionSynchronizationManager.isActualTransactionActive()).isFalse();
+        assertThat(dataSource.getHikariPoolMXBean().getActiveConnections()).isZero();
+    }
+
+}
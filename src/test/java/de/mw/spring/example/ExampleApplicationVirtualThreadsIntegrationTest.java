@@ -0,0 +1,105 @@
+package de.mw.spring.example;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyRange;
+import de.mw.spring.example.app.Person;
+import de.mw.spring.example.app.PersonDto;
+import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                properties = {"spring.datasource.url=jdbc:h2:mem:virtualthreads;DB_CLOSE_DELAY=-1",
+                              "app.configuration.asyncjpastreaming.virtualThreads=true",
+                              "app.configuration.asyncjpastreaming.threads=2"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ExampleApplicationVirtualThreadsIntegrationTest {
+
+    private final static int COUNT = 1000;
+
+    private final static int CLIENTS = 50;
+
+    @Autowired
+    private PersonRepository personRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    @Qualifier("asyncJPAStreamingTaskExecutor")
+    private Executor executor;
+
+    @BeforeAll
+    void setUp() {
+        for (int i = 0; i < COUNT; i++) {
+            personRepository.save(new Person("John Doe " + i));
+        }
+    }
+
+    @Test
+    void testConcurrentStreamsExceedingThreadLimit() throws Exception {
+        assertThat(CompletableFuture.supplyAsync(() -> Thread.currentThread().isVirtual(), executor).get()).isTrue();
+
+        List<Future<PersonDto[]>> responses = new ArrayList<>();
+        try (ExecutorService clients = Executors.newFixedThreadPool(CLIENTS)) {
+            for (int i = 0; i < CLIENTS; i++) {
+                responses.add(clients.submit(() -> restTemplate.getForObject("/persons", PersonDto[].class)));
+            }
+        }
+
+        for (Future<PersonDto[]> response : responses) {
+            assertThat(response.get())
+                    .hasSize(COUNT)
+                    .allSatisfy(person -> assertThat(person.getName()).startsWith("John Doe"));
+        }
+    }
+
+    @Test
+    void testConcurrentOrderedPartitionedStreams() throws Exception {
+        // more persons per partition than fit into its buffer, the second partitions wait for their consumers
+        List<Person> persons = personRepository.saveAll(IntStream.range(0, 4000).mapToObj(i -> new Person("Jane Doe " + i)).toList());
+        try {
+            var range = AsyncJPAStreamingKeyRange.closed(personRepository.findMinId(), personRepository.findMaxId());
+            for (int i = 0; i < 10; i++) {
+                // 2 partitions each, 2 running threads
+                List<CompletableFuture<List<Long>>> ids = IntStream.range(0, 2)
+                        .mapToObj(client -> CompletableFuture.supplyAsync(() -> {
+                            try (Stream<Person> stream = personService.streamPersonsPartitionedOrdered(range)) {
+                                return stream.map(Person::getId).toList();
+                            }
+                        }))
+                        .toList();
+
+                for (CompletableFuture<List<Long>> streamed : ids) {
+                    assertThat(streamed.get(10, TimeUnit.SECONDS))
+                            .hasSize(COUNT + persons.size())
+                            .isSorted();
+                }
+            }
+        } finally {
+            personRepository.deleteAllInBatch(persons);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package de.mw.spring.example;
+
+import de.mw.spring.example.app.Person;
+import de.mw.spring.example.app.PersonDto;
+import de.mw.spring.example.app.PersonRepository;
+import de.mw.spring.example.app.PersonService;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:withoutjdbctemplate;DB_CLOSE_DELAY=-1",
+                              "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration"})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ExampleApplicationWithoutJdbcTemplateIntegrationTest {
+
+    private final static int COUNT = 100;
+
+    @Autowired
+    private PersonRepository personRepository;
+
+    @Autowired
+    private PersonService personService;
+
+    @BeforeAll
+    void setUp() {
+        for (int i = 0; i < COUNT; i++) {
+            personRepository.save(new Person("John Doe " + i));
+        }
+    }
+
+    @Test
+    void testStreamingEntities() {
+        try (Stream<PersonDto> persons = personService.streamAllPersonsCleared()) {
+            assertThat(persons).hasSize(COUNT);
+        }
+    }
+
+    @Test
+    void testStreamingRowsFails() {
+        assertThatThrownBy(() -> personService.streamAllPersonRows())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("JdbcTemplate");
+    }
+
+}
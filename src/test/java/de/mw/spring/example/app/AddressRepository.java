@@ -0,0 +1,7 @@
+package de.mw.spring.example.app;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface AddressRepository extends JpaRepository<Address, Long> {
+
+}
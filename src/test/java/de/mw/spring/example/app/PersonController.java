@@ -1,9 +1,14 @@
 package de.mw.spring.example.app;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingResponseBody;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
 
 import java.util.stream.Stream;
 
@@ -13,9 +18,34 @@ public class PersonController {
 
     private final PersonService personService;
 
+    private final ObjectMapper objectMapper;
+
     @GetMapping(value = "/persons", produces = /* not MediaType.APPLICATION_NDJSON_VALUE for Array compatibility */ MediaType.APPLICATION_JSON_VALUE)
     public Stream<PersonDto> streamPersons() {
         return personService.streamAllPersons();
     }
 
+    @GetMapping(value = "/persons/chunked", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Stream<PersonDto> streamPersonsChunked() {
+        return personService.streamAllPersonsChunked();
+    }
+
+    @GetMapping(value = "/persons/flux", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Flux<PersonDto> publishPersons() {
+        return personService.publishAllPersons();
+    }
+
+    @GetMapping(value = "/persons/json", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> writePersons() {
+        return AsyncJPAStreamingResponseBody.jsonArray(personService.streamAllPersonsChunked(), objectMapper)
+                                            .toResponseEntity();
+    }
+
+    @GetMapping(value = "/persons/ndjson", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> writePersonsNdjson() {
+        return AsyncJPAStreamingResponseBody.ndjson(personService.streamAllPersonsChunked(), objectMapper)
+                                            .flushInterval(1000)
+                                            .toResponseEntity();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package de.mw.spring.example.app;
+
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreaming;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.util.stream.Stream;
+
+/**
+ * Streams composed of the nested streams of {@link PersonService}
+ */
+@Service
+@RequiredArgsConstructor
+public class PersonReportService {
+
+    private final PersonService personService;
+
+    /**
+     * Pairs of the outer and the nested query thread, joining the outer transaction
+     */
+    @AsyncJPAStreaming(bufferCapacity = 100)
+    public Stream<String> streamNestedJoined() {
+        String thread = Thread.currentThread().getName();
+        return personService.streamQueryThreads()
+                .map(nestedThread -> thread + " " + nestedThread);
+    }
+
+    /**
+     * Pairs of the outer and the nested query thread, streaming with an own connection
+     */
+    @AsyncJPAStreaming(bufferCapacity = 100)
+    public Stream<String> streamNestedOwnConnection() {
+        String thread = Thread.currentThread().getName();
+        return personService.streamQueryThreadsOwnConnection()
+                .map(nestedThread -> thread + " " + nestedThread);
+    }
+
+}
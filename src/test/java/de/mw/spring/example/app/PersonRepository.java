@@ -1,11 +1,15 @@
 package de.mw.spring.example.app;
 
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyRange;
 import jakarta.persistence.QueryHint;
 import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.QueryHints;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface PersonRepository extends JpaRepository<Person, Long> {
 
@@ -17,4 +21,45 @@ public interface PersonRepository extends JpaRepository<Person, Long> {
     @Override
     List<Person> findAll();
 
+    @QueryHints(value = {
+            @QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = AvailableHints.HINT_CACHEABLE, value = "false"),
+            @QueryHint(name = AvailableHints.HINT_READ_ONLY, value = "true")
+    })
+    Stream<Person> streamAllBy();
+
+    /**
+     * Without fetch size hint, for the adaptive fetch size
+     */
+    Stream<Person> streamAllByOrderByIdAsc();
+
+    @QueryHints(value = {
+            @QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = AvailableHints.HINT_CACHEABLE, value = "false")
+    })
+    @Query("select new de.mw.spring.example.app.PersonDto(p.name) from Person p order by p.id")
+    Stream<PersonDto> streamAllProjectedBy();
+
+    @QueryHints(value = {
+            @QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = AvailableHints.HINT_CACHEABLE, value = "false"),
+            @QueryHint(name = AvailableHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("select p from Person p where p.id >= :#{[0].from()} and p.id < :#{[0].to()} order by p.id")
+    Stream<Person> streamByIdRange(AsyncJPAStreamingKeyRange range);
+
+    List<Person> findByIdGreaterThanOrderByIdAsc(long id, Limit limit);
+
+    /**
+     * Scans billions of rows without a result, runs until cancelled
+     */
+    @Query(value = "select x from system_range(1, 10000000000) where mod(x, 1000000007) = -1", nativeQuery = true)
+    Stream<Long> streamSlowQuery();
+
+    @Query("select min(p.id) from Person p")
+    long findMinId();
+
+    @Query("select max(p.id) from Person p")
+    long findMaxId();
+
 }
\ No newline at end of file
@@ -1,8 +1,16 @@
 package de.mw.spring.example.app;
 
 import de.mw.spring.asyncjpastreaming.AsyncJPAStreaming;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyRange;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingKeyset;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingNested;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingOptions;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingPersistenceContext;
+import de.mw.spring.asyncjpastreaming.AsyncJPAStreamingSupport;
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 
 import java.util.stream.Stream;
 
@@ -12,6 +20,8 @@ public class PersonService {
 
     private final PersonRepository personRepository;
 
+    private final AsyncJPAStreamingSupport streamingSupport;
+
     @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 1000)
     public Stream<PersonDto> streamAllPersons() {
         return personRepository.findAll()
@@ -19,4 +29,185 @@ public class PersonService {
                 .map(person -> new PersonDto(person.getName()));
     }
 
+    @AsyncJPAStreaming(clearEntityManager = true)
+    public Flux<PersonDto> publishAllPersons() {
+        return Flux.fromStream(personRepository.streamAllBy())
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 1000, chunkSize = 100)
+    public Stream<PersonDto> streamAllPersonsChunked() {
+        return personRepository.findAll()
+                .stream()
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    @AsyncJPAStreaming(persistenceContext = AsyncJPAStreamingPersistenceContext.DETACH, bufferCapacity = 1000)
+    public Stream<Person> streamAllPersonsDetached() {
+        return personRepository.streamAllBy();
+    }
+
+    @AsyncJPAStreaming(persistenceContext = AsyncJPAStreamingPersistenceContext.DETACH, clearInterval = 100, bufferCapacity = 1000)
+    public Stream<PersonDto> streamAllPersonDtosDetached() {
+        return personRepository.streamAllBy()
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    @AsyncJPAStreaming(persistenceContext = AsyncJPAStreamingPersistenceContext.CLEAR, clearInterval = 100, bufferCapacity = 1000)
+    public Stream<PersonDto> streamAllPersonsCleared() {
+        return personRepository.streamAllBy()
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    public Stream<Person> streamAllPersonsStateless() {
+        return streamingSupport.streamAsyncStateless(session -> session.createSelectionQuery("from Person order by id", Person.class)
+                                                                       .setFetchSize(1000)
+                                                                       .getResultStream(),
+                                                     AsyncJPAStreamingOptions.builder()
+                                                                             .name("PersonService.streamAllPersonsStateless")
+                                                                             .bufferCapacity(1000)
+                                                                             .build());
+    }
+
+    @AsyncJPAStreaming(bufferCapacity = 1000, chunkSize = 100)
+    public Stream<PersonDto> streamAllPersonsProjected() {
+        return personRepository.streamAllProjectedBy();
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 1000, prefetch = "addresses")
+    public Stream<Person> streamAllPersonsWithAddresses() {
+        return personRepository.streamAllBy();
+    }
+
+    @AsyncJPAStreaming(bufferCapacity = 100)
+    public Stream<Person> streamAllPersonsWithoutFetchSize() {
+        return personRepository.streamAllByOrderByIdAsc();
+    }
+
+    @AsyncJPAStreaming(bufferCapacity = 50)
+    public Stream<Person> streamAllPersonsAfterLookup() {
+        long minId = personRepository.findMinId(); // executed before the streamed query
+        return personRepository.streamAllByOrderByIdAsc()
+                               .filter(person -> person.getId() >= minId);
+    }
+
+    public Stream<PersonDto> streamAllPersonRows() {
+        return streamingSupport.streamAsyncRows("select name from person order by id",
+                                                (resultSet, row) -> new PersonDto(resultSet.getString(1)),
+                                                AsyncJPAStreamingOptions.builder()
+                                                                        .name("PersonService.streamAllPersonRows")
+                                                                        .bufferCapacity(1000)
+                                                                        .chunkSize(100)
+                                                                        .build());
+    }
+
+    /**
+     * Scans billions of rows without a result with JDBC, runs until cancelled
+     */
+    public Stream<Long> streamSlowQueryRows() {
+        return streamingSupport.streamAsyncRows("select x from system_range(1, ?) where mod(x, ?) = -1",
+                                                (resultSet, row) -> resultSet.getLong(1),
+                                                AsyncJPAStreamingOptions.builder()
+                                                                        .name("PersonService.streamSlowQueryRows")
+                                                                        .build(),
+                                                10_000_000_000L, 1_000_000_007L);
+    }
+
+    public Stream<PersonDto> streamAllPersonsMapped() {
+        return streamingSupport.streamAsyncMapped(() -> personRepository.streamAllBy(),
+                                                  person -> new PersonDto(person.getName()),
+                                                  AsyncJPAStreamingOptions.builder()
+                                                                          .name("PersonService.streamAllPersonsMapped")
+                                                                          .clearEntityManager(true)
+                                                                          .bufferCapacity(1000)
+                                                                          .chunkSize(100)
+                                                                          .build());
+    }
+
+    /**
+     * Ids of the persons in order, each with the name of the thread mapping it
+     */
+    public Stream<String> streamPersonIdsMapped(AsyncJPAStreamingKeyRange range) {
+        return streamingSupport.streamAsyncMapped(() -> personRepository.streamByIdRange(range),
+                                                  person -> person.getId() + " " + Thread.currentThread().getName(),
+                                                  AsyncJPAStreamingOptions.builder()
+                                                                          .name("PersonService.streamPersonIdsMapped")
+                                                                          .clearEntityManager(true)
+                                                                          .bufferCapacity(1000)
+                                                                          .mappingBatchSize(10)
+                                                                          .build());
+    }
+
+    public AsyncJPAStreamingKeyset<Person, Long> personKeyset(int pageSize) {
+        return AsyncJPAStreamingKeyset.of((lastId, limit) -> personRepository.findByIdGreaterThanOrderByIdAsc(lastId == null ? 0 : lastId, Limit.of(limit)),
+                                          Person::getId, pageSize);
+    }
+
+    public Stream<Person> streamPersonsKeyset(AsyncJPAStreamingKeyset<Person, Long> keyset) {
+        return streamingSupport.streamAsyncKeyset(keyset, AsyncJPAStreamingOptions.builder()
+                                                                                  .name("PersonService.streamPersonsKeyset")
+                                                                                  .bufferCapacity(keyset.getPageSize())
+                                                                                  .build());
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 100, spillBytes = 4 * 1024 * 1024)
+    public Stream<PersonDto> streamAllPersonsSpilled() {
+        return personRepository.streamAllBy()
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    /**
+     * Names of the threads executing the query, one per person
+     */
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 100)
+    public Stream<String> streamQueryThreads() {
+        String thread = Thread.currentThread().getName();
+        return personRepository.streamAllBy()
+                .map(person -> thread);
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 100, nested = AsyncJPAStreamingNested.NEW)
+    public Stream<String> streamQueryThreadsOwnConnection() {
+        String thread = Thread.currentThread().getName();
+        return personRepository.streamAllBy()
+                .map(person -> thread);
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 100, shared = true)
+    public Stream<PersonDto> streamPersonsShared(String report) {
+        return personRepository.streamAllBy()
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    @AsyncJPAStreaming(bufferCapacity = 100)
+    public Stream<Long> streamSlowQuery() {
+        return personRepository.streamSlowQuery();
+    }
+
+    @AsyncJPAStreaming(bufferCapacity = 100, timeoutMillis = 200)
+    public Stream<Long> streamSlowQueryWithTimeout() {
+        return personRepository.streamSlowQuery();
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 10, timeoutMillis = 300)
+    public Stream<PersonDto> streamAllPersonsWithTimeout() {
+        return personRepository.streamAllBy()
+                .map(person -> new PersonDto(person.getName()));
+    }
+
+    @AsyncJPAStreaming(bufferCapacity = 100, idleTimeoutMillis = 200)
+    public Stream<Long> streamSlowQueryWithIdleTimeout() {
+        return personRepository.streamSlowQuery();
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 1000, chunkSize = 100, partitions = 4)
+    public Stream<Person> streamPersonsPartitioned(AsyncJPAStreamingKeyRange range) {
+        return personRepository.streamByIdRange(range);
+    }
+
+    @AsyncJPAStreaming(clearEntityManager = true, bufferCapacity = 1000, chunkSize = 100, partitions = 4, orderedMerge = true)
+    public Stream<Person> streamPersonsPartitionedOrdered(AsyncJPAStreamingKeyRange range) {
+        return personRepository.streamByIdRange(range);
+    }
+
 }
\ No newline at end of file